@@ -0,0 +1,169 @@
+package gradle.app;
+
+import java.sql.*;
+import java.util.*;
+
+/**
+ * KrustyData is the data set that check-krusty.py posts to the server:
+ * its customers, ingredients, first deliveries and cookies. It is used
+ * to seed databases for benchmarks and load tests, so that they work
+ * on the same data as the correctness check.
+ */
+public class KrustyData {
+
+    public static final String[][] CUSTOMERS = {
+        {"Bullar och bong", "Bakgatan 4, Lund"},
+        {"Café Ingalunda", "Återvändsgränden 1, Kivik"},
+        {"Kakbak HB", "Degkroken 8, Malmö"},
+    };
+
+    public static final String[][] INGREDIENTS = {
+        {"Flour", "g"},
+        {"Butter", "g"},
+        {"Icing sugar", "g"},
+        {"Roasted chopped nuts", "g"},
+        {"Fine-ground nuts", "g"},
+        {"Ground roasted nuts", "g"},
+        {"Bread crumbs", "g"},
+        {"Sugar", "g"},
+        {"Egg whites", "ml"},
+        {"Chocolate", "g"},
+        {"Marzipan", "g"},
+        {"Eggs", "g"},
+        {"Potato starch", "g"},
+        {"Wheat flour", "g"},
+        {"Sodium bicarbonate", "g"},
+        {"Vanilla", "g"},
+        {"Chopped almonds", "g"},
+        {"Cinnamon", "g"},
+        {"Vanilla sugar", "g"},
+    };
+
+    public static final Map<String, Integer> DELIVERIES = orderedMap(
+        "Flour", 500_000,
+        "Butter", 200_000,
+        "Icing sugar", 100_000,
+        "Roasted chopped nuts", 200_000,
+        "Fine-ground nuts", 200_000,
+        "Ground roasted nuts", 200_000,
+        "Bread crumbs", 150_000,
+        "Sugar", 500_000,
+        "Egg whites", 350_000,
+        "Chocolate", 300_000,
+        "Marzipan", 100_000,
+        "Eggs", 300_000,
+        "Potato starch", 100_000,
+        "Wheat flour", 600_000,
+        "Sodium bicarbonate", 25_000,
+        "Vanilla", 100_000,
+        "Chopped almonds", 250_000,
+        "Cinnamon", 40_000,
+        "Vanilla sugar", 40_000);
+
+    public static final Map<String, Map<String, Integer>> COOKIES = orderedMap(
+        "Tango", orderedMap(
+            "Butter", 200,
+            "Sugar", 250,
+            "Flour", 300,
+            "Sodium bicarbonate", 4,
+            "Vanilla", 2),
+        "Almond delight", orderedMap(
+            "Butter", 400,
+            "Sugar", 270,
+            "Chopped almonds", 279,
+            "Flour", 400,
+            "Cinnamon", 10));
+
+    public static final String DELIVERY_TIME = "2021-03-19 10:30:00";
+
+    /**
+     * The body check-krusty.py posts to /cookies for cookie.
+     */
+    public static String cookieJson(String cookie) {
+        var sb = new StringBuilder();
+        sb.append("{\"name\": \"").append(cookie).append("\", \"recipe\": [");
+        var first = true;
+        for (var entry : COOKIES.get(cookie).entrySet()) {
+            sb.append(first ? "" : ", ");
+            sb.append("{\"ingredient\": \"").append(entry.getKey())
+                .append("\", \"amount\": ").append(entry.getValue()).append("}");
+            first = false;
+        }
+        return sb.append("]}").toString();
+    }
+
+    /**
+     * Inserts the whole data set into an empty database, with every
+     * delivery multiplied by stockFactor so that many pallets can be
+     * baked from it.
+     *
+     * @param conn
+     * @param stockFactor
+     */
+    public static void seed(Connection conn, long stockFactor) throws SQLException {
+        var autoCommit = conn.getAutoCommit();
+        conn.setAutoCommit(false);
+        try {
+            try (var ps = conn.prepareStatement(
+                    "INSERT INTO customers (customerName, customerAddress) VALUES (?, ?)")) {
+                for (var customer : CUSTOMERS) {
+                    ps.setString(1, customer[0]);
+                    ps.setString(2, customer[1]);
+                    ps.addBatch();
+                }
+                ps.executeBatch();
+            }
+
+            try (var ps = conn.prepareStatement(
+                    """
+                    INSERT
+                    INTO   wareHouse (ingredientName, unit, totalAmount, lastDelivered, lastDeliveredAmount)
+                    VALUES (?, ?, ?, ?, ?)
+                    """)) {
+                for (var ingredient : INGREDIENTS) {
+                    long amount = DELIVERIES.get(ingredient[0]) * stockFactor;
+                    ps.setString(1, ingredient[0]);
+                    ps.setString(2, ingredient[1]);
+                    ps.setLong(3, amount);
+                    ps.setString(4, DELIVERY_TIME);
+                    ps.setLong(5, amount);
+                    ps.addBatch();
+                }
+                ps.executeBatch();
+            }
+
+            try (var product = conn.prepareStatement("INSERT INTO products (productName) VALUES (?)");
+                    var recipe = conn.prepareStatement(
+                        "INSERT INTO reciepts (productName, ingredientName, ingredientAmount) VALUES (?, ?, ?)")) {
+                for (var cookie : COOKIES.entrySet()) {
+                    product.setString(1, cookie.getKey());
+                    product.addBatch();
+                    for (var ingredient : cookie.getValue().entrySet()) {
+                        recipe.setString(1, cookie.getKey());
+                        recipe.setString(2, ingredient.getKey());
+                        recipe.setInt(3, ingredient.getValue());
+                        recipe.addBatch();
+                    }
+                }
+                product.executeBatch();
+                recipe.executeBatch();
+            }
+            conn.commit();
+        } catch (SQLException e) {
+            conn.rollback();
+            throw e;
+        } finally {
+            conn.setAutoCommit(autoCommit);
+        }
+    }
+
+    private static <V> Map<String, V> orderedMap(Object... entries) {
+        var map = new LinkedHashMap<String, V>();
+        for (int i = 0; i < entries.length; i += 2) {
+            @SuppressWarnings("unchecked")
+            var value = (V) entries[i + 1];
+            map.put((String) entries[i], value);
+        }
+        return Collections.unmodifiableMap(map);
+    }
+}
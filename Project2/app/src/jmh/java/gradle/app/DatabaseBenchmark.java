@@ -0,0 +1,183 @@
+package gradle.app;
+
+import org.openjdk.jmh.annotations.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Benchmarks of the Database endpoint methods, called directly with
+ * fake requests so that only the database and JSON work is measured.
+ * Throughput and sampled latency percentiles are reported for each.
+ *
+ * The list GETs are measured three ways: with the ResponseCache emptied
+ * before each call, so that the query and the encoding are measured;
+ * answered from a kept body; and answered 304 to a matching
+ * If-None-Match.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DatabaseBenchmark {
+
+    private static final String PALLET_BODY = "{\"cookie\": \"Tango\"}";
+    private static final String DELIVERY_BODY =
+        "{\"quantity\": 1000, \"deliveryTime\": \"2021-03-19 10:30:00\"}";
+    private static final String COOKIE_BODY = KrustyData.cookieJson("Almond delight");
+    private static final AtomicLong COOKIE_IDS = new AtomicLong();
+
+    @Benchmark
+    public String newPallet(KrustyState state) {
+        return state.db.newPallet(new FakeRequest(PALLET_BODY), new FakeResponse());
+    }
+
+    /**
+     * Empties the ResponseCache before each call. Setup at this level
+     * runs inside the timed loop, so the uncached benchmarks also pay
+     * for it, but it is small next to a query.
+     */
+    @State(Scope.Thread)
+    public static class Uncached {
+        @Setup(Level.Invocation)
+        public void invalidate(KrustyState state) {
+            state.db.responses().changedAll();
+        }
+    }
+
+    /**
+     * The ETags of the list GETs that take no filters, for If-None-Match.
+     */
+    @State(Scope.Benchmark)
+    public static class Etags {
+        Map<String, String> cookies;
+        Map<String, String> materials;
+
+        @Setup(Level.Trial)
+        public void setUp(KrustyState state) {
+            var res = new FakeResponse();
+            state.db.getCookies(new FakeRequest(""), res);
+            cookies = Map.of("If-None-Match", res.header("ETag"));
+            res = new FakeResponse();
+            state.db.getMaterials(new FakeRequest(""), res);
+            materials = Map.of("If-None-Match", res.header("ETag"));
+        }
+    }
+
+    @Benchmark
+    public String getCookies(KrustyState state, Uncached uncached) {
+        return state.db.getCookies(new FakeRequest(""), new FakeResponse());
+    }
+
+    @Benchmark
+    public String getCookiesCached(KrustyState state) {
+        return state.db.getCookies(new FakeRequest(""), new FakeResponse());
+    }
+
+    @Benchmark
+    public String getCookiesNotModified(KrustyState state, Etags etags) {
+        return state.db.getCookies(new FakeRequest("", Map.of(), Map.of(), etags.cookies),
+            new FakeResponse());
+    }
+
+    @Benchmark
+    public String getCookie(KrustyState state) {
+        return state.db.getCookie(new FakeRequest(""), new FakeResponse(), "Tango");
+    }
+
+    @Benchmark
+    public String getMaterials(KrustyState state, Uncached uncached) {
+        return state.db.getMaterials(new FakeRequest(""), new FakeResponse());
+    }
+
+    @Benchmark
+    public String getMaterialsCached(KrustyState state) {
+        return state.db.getMaterials(new FakeRequest(""), new FakeResponse());
+    }
+
+    @Benchmark
+    public String getMaterialsNotModified(KrustyState state, Etags etags) {
+        return state.db.getMaterials(new FakeRequest("", Map.of(), Map.of(), etags.materials),
+            new FakeResponse());
+    }
+
+    @Benchmark
+    public String addDelivery(KrustyState state) {
+        return state.db.addDelivery(new FakeRequest(DELIVERY_BODY), new FakeResponse(), "Flour");
+    }
+
+    @Benchmark
+    public String addCookie(KrustyState state) {
+        var body = COOKIE_BODY.replace("Almond delight", "Cookie " + COOKIE_IDS.incrementAndGet());
+        return state.db.addCookie(new FakeRequest(body), new FakeResponse());
+    }
+
+    @Benchmark
+    public Object splitBody(KrustyState state) {
+        return state.db.splitBody(COOKIE_BODY);
+    }
+
+    @Benchmark
+    public Object parsePallet() {
+        return JsonCodec.read(PALLET_BODY, Database.Pallet::fromJson);
+    }
+
+    /**
+     * GET /pallets with every combination of its filters.
+     */
+    @State(Scope.Benchmark)
+    public static class PalletFilters {
+        @Param({"none", "cookie", "after", "before", "cookie,after", "cookie,before",
+                "after,before", "cookie,after,before"})
+        public String filters;
+
+        Map<String, String> queryParams;
+        Map<String, String> etag;
+
+        @Setup
+        public void setUp(KrustyState state) {
+            queryParams = new HashMap<>();
+            for (var filter : filters.split(",")) {
+                switch (filter) {
+                    case "cookie":
+                        queryParams.put("cookie", "Tango");
+                        break;
+                    case "after":
+                        queryParams.put("after", KrustyState.FIRST_DAY.plusMonths(5).toString());
+                        break;
+                    case "before":
+                        queryParams.put("before", KrustyState.FIRST_DAY.plusMonths(7).toString());
+                        break;
+                    default:
+                        break;
+                }
+            }
+
+            var res = new FakeResponse();
+            state.db.getPallets(new FakeRequest("", Map.of(), queryParams), res);
+            etag = Map.of("If-None-Match", res.header("ETag"));
+        }
+    }
+
+    @Benchmark
+    public long getPallets(KrustyState state, PalletFilters filters, Uncached uncached) {
+        var res = new FakeResponse();
+        state.db.getPallets(new FakeRequest("", Map.of(), filters.queryParams), res);
+        return res.written();
+    }
+
+    @Benchmark
+    public long getPalletsCached(KrustyState state, PalletFilters filters) {
+        var res = new FakeResponse();
+        state.db.getPallets(new FakeRequest("", Map.of(), filters.queryParams), res);
+        return res.written();
+    }
+
+    @Benchmark
+    public int getPalletsNotModified(KrustyState state, PalletFilters filters) {
+        var res = new FakeResponse();
+        state.db.getPallets(new FakeRequest("", Map.of(), filters.queryParams, filters.etag), res);
+        return res.status();
+    }
+}
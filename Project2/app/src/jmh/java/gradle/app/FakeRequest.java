@@ -0,0 +1,68 @@
+package gradle.app;
+
+import spark.Request;
+import java.util.*;
+
+/**
+ * A Request for calling Database endpoint methods without a server,
+ * with a fixed body, path parameters, query parameters and headers.
+ */
+class FakeRequest extends Request {
+    private final String body;
+    private final Map<String, String> params;
+    private final Map<String, String> queryParams;
+    private final Map<String, String> headers;
+
+    FakeRequest(String body) {
+        this(body, Map.of(), Map.of());
+    }
+
+    FakeRequest(String body, Map<String, String> params, Map<String, String> queryParams) {
+        this(body, params, queryParams, Map.of());
+    }
+
+    FakeRequest(String body, Map<String, String> params, Map<String, String> queryParams,
+            Map<String, String> headers) {
+        this.body = body;
+        this.params = params;
+        this.queryParams = queryParams;
+        this.headers = headers;
+    }
+
+    @Override
+    public String body() {
+        return body;
+    }
+
+    @Override
+    public String params(String name) {
+        return params.get(name);
+    }
+
+    @Override
+    public String queryParams(String name) {
+        return queryParams.get(name);
+    }
+
+    @Override
+    public Set<String> queryParams() {
+        return queryParams.keySet();
+    }
+
+    @Override
+    public String queryString() {
+        if (queryParams.isEmpty()) {
+            return null;
+        }
+        var query = new StringJoiner("&");
+        for (var entry : new TreeMap<>(queryParams).entrySet()) {
+            query.add(entry.getKey() + "=" + entry.getValue());
+        }
+        return query.toString();
+    }
+
+    @Override
+    public String headers(String name) {
+        return headers.get(name);
+    }
+}
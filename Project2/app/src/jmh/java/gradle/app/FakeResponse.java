@@ -0,0 +1,90 @@
+package gradle.app;
+
+import spark.Response;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * A Response for calling Database endpoint methods without a server.
+ * It keeps the status and headers, and counts and discards anything
+ * streamed to it.
+ */
+class FakeResponse extends Response {
+    private int status;
+    private long written;
+    private final Map<String, String> headers = new HashMap<>();
+
+    private final ServletOutputStream out = new ServletOutputStream() {
+        @Override
+        public void write(int b) {
+            written++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            written += len;
+        }
+
+        @Override
+        public boolean isReady() {
+            return true;
+        }
+
+        @Override
+        public void setWriteListener(WriteListener listener) {
+        }
+    };
+
+    private final HttpServletResponse raw = (HttpServletResponse) Proxy.newProxyInstance(
+        FakeResponse.class.getClassLoader(), new Class<?>[] {HttpServletResponse.class},
+        (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "getOutputStream":
+                    return out;
+                case "isCommitted":
+                    return written > 0;
+                case "getStatus":
+                    return status;
+                case "setStatus":
+                    status = (Integer) args[0];
+                    return null;
+                default:
+                    return null;
+            }
+        });
+
+    @Override
+    public void status(int statusCode) {
+        status = statusCode;
+    }
+
+    public int status() {
+        return status;
+    }
+
+    public long written() {
+        return written;
+    }
+
+    public String header(String name) {
+        return headers.get(name);
+    }
+
+    @Override
+    public void type(String contentType) {
+    }
+
+    @Override
+    public void header(String header, String value) {
+        headers.put(header, value);
+    }
+
+    @Override
+    public HttpServletResponse raw() {
+        return raw;
+    }
+}
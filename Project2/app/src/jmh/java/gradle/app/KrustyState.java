@@ -0,0 +1,82 @@
+package gradle.app;
+
+import org.openjdk.jmh.annotations.*;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.sql.*;
+import java.time.LocalDate;
+import java.util.Properties;
+
+/**
+ * A Database on a temporary SQLite file, seeded with the data set of
+ * check-krusty.py and a history of baked pallets spread over a year.
+ * Stock is multiplied so that benchmarks can keep baking. Each
+ * benchmark runs once per PragmaProfile; pick one with -p pragmas=fast.
+ */
+@State(Scope.Benchmark)
+public class KrustyState {
+    private static final long STOCK_FACTOR = 1_000_000;
+
+    static final LocalDate FIRST_DAY = LocalDate.of(2021, 1, 1);
+
+    @Param({"10000"})
+    public int pallets;
+
+    @Param({"durable", "balanced", "fast"})
+    public String pragmas;
+
+    Database db;
+    private Path file;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        file = Files.createTempFile("krusty-bench", ".sqlite");
+        try (var conn = DriverManager.getConnection("jdbc:sqlite:" + file)) {
+            SchemaMigrations.runScript(conn, schema());
+            KrustyData.seed(conn, STOCK_FACTOR);
+            bakeHistory(conn, pallets);
+        }
+
+        var settings = new Properties();
+        settings.setProperty("krusty.pragmas", pragmas);
+        db = new Database(Config.of(settings));
+        if (!db.openConnection(file.toString())) {
+            throw new IllegalStateException("Could not open " + file);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        db.closeConnection();
+        for (var suffix : new String[] {"", "-wal", "-shm"}) {
+            Files.deleteIfExists(Path.of(file + suffix));
+        }
+    }
+
+    private static String schema() throws IOException {
+        try (var in = KrustyState.class.getResourceAsStream("/project1-schema.sql")) {
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * Inserts count pallets, alternating between the cookies and
+     * spread evenly over a year from FIRST_DAY.
+     */
+    private static void bakeHistory(Connection conn, int count) throws SQLException {
+        var cookies = KrustyData.COOKIES.keySet().toArray(new String[0]);
+        conn.setAutoCommit(false);
+        try (var ps = conn.prepareStatement(
+                "INSERT INTO pallets (productName, productionDate) VALUES (?, ?)")) {
+            for (int i = 0; i < count; i++) {
+                ps.setString(1, cookies[i % cookies.length]);
+                ps.setString(2, FIRST_DAY.plusDays(i * 365L / count).toString());
+                ps.addBatch();
+            }
+            ps.executeBatch();
+        }
+        conn.commit();
+        conn.setAutoCommit(true);
+    }
+}
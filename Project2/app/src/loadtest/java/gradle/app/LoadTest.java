@@ -0,0 +1,293 @@
+package gradle.app;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * LoadTest replays a mix of Krusty traffic against a running server:
+ * customers, ingredients, deliveries, cookies, recipes, pallets and
+ * blocking, in roughly the proportions a bakery would see. Every
+ * client is a virtual thread sending one request at a time, and the
+ * latency of each request is recorded in an HdrHistogram per route.
+ *
+ * The server is reset and seeded with the check-krusty.py data set
+ * first, with large deliveries so that pallets can be baked for the
+ * whole run.
+ *
+ * Options: --host (localhost), --port (8888), --concurrency (64),
+ * --warmup seconds (5), --duration seconds (30), --no-reset.
+ */
+public class LoadTest {
+
+    private static final long STOCK_FACTOR = 1_000;
+    private static final String[] COOKIES = KrustyData.COOKIES.keySet().toArray(new String[0]);
+
+    private final String base;
+    private final HttpClient client;
+    private final List<Route> routes = new ArrayList<>();
+    private int totalWeight = 0;
+
+    private LoadTest(String host, int port) {
+        this.base = "http://" + host + ":" + port;
+        this.client = HttpClient.newBuilder()
+            .executor(Executors.newVirtualThreadPerTaskExecutor())
+            .connectTimeout(Duration.ofSeconds(5))
+            .build();
+    }
+
+    public static void main(String[] args) throws Exception {
+        var options = new HashMap<String, String>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--no-reset")) {
+                options.put("reset", "false");
+            } else if (args[i].startsWith("--") && i + 1 < args.length) {
+                options.put(args[i].substring(2), args[++i]);
+            } else {
+                System.err.println("Unknown option: " + args[i]);
+                System.exit(2);
+            }
+        }
+
+        var test = new LoadTest(options.getOrDefault("host", "localhost"),
+            Integer.parseInt(options.getOrDefault("port", "8888")));
+        int concurrency = Integer.parseInt(options.getOrDefault("concurrency", "64"));
+        int warmup = Integer.parseInt(options.getOrDefault("warmup", "5"));
+        int duration = Integer.parseInt(options.getOrDefault("duration", "30"));
+
+        if (!options.getOrDefault("reset", "true").equals("false")) {
+            test.seed();
+        }
+        test.addRoutes();
+
+        System.out.printf("Warming up for %d s with %d clients%n", warmup, concurrency);
+        test.run(concurrency, warmup);
+        test.routes.forEach(Route::reset);
+
+        System.out.printf("Measuring for %d s with %d clients%n", duration, concurrency);
+        long start = System.nanoTime();
+        test.run(concurrency, duration);
+        test.report((System.nanoTime() - start) / 1e9);
+    }
+
+    /**
+     * Resets the server and posts the check-krusty.py data set.
+     */
+    private void seed() throws Exception {
+        expect(send("POST", "/reset", null), 205);
+        for (var customer : KrustyData.CUSTOMERS) {
+            expect(send("POST", "/customers", json("name", customer[0], "address", customer[1])), 201);
+        }
+        for (var ingredient : KrustyData.INGREDIENTS) {
+            expect(send("POST", "/ingredients", json("ingredient", ingredient[0], "unit", ingredient[1])), 201);
+        }
+        for (var delivery : KrustyData.DELIVERIES.entrySet()) {
+            var body = "{\"quantity\": " + delivery.getValue() * STOCK_FACTOR
+                + ", \"deliveryTime\": \"" + KrustyData.DELIVERY_TIME + "\"}";
+            expect(send("POST", "/ingredients/" + encode(delivery.getKey()) + "/deliveries", body), 201);
+        }
+        for (var cookie : COOKIES) {
+            expect(send("POST", "/cookies", KrustyData.cookieJson(cookie)), 201);
+        }
+    }
+
+    /**
+     * The traffic mix, as routes with relative weights. Each route
+     * builds a new request, and lists the statuses that count as
+     * answered correctly.
+     */
+    private void addRoutes() {
+        var customerIds = new LongAdder();
+        var today = java.time.LocalDate.now();
+
+        route("GET /customers", 8, r -> get("/customers"), 200);
+        route("POST /customers", 1, r -> {
+            customerIds.increment();
+            return post("/customers", json("name", "Load test " + customerIds.sum() + " " + r.nextLong(),
+                "address", "Lasttestgatan 1, Lund"));
+        }, 201);
+        route("GET /ingredients", 10, r -> get("/ingredients"), 200);
+        route("POST /ingredients/:ingredient/deliveries", 8, r -> {
+            var ingredient = KrustyData.INGREDIENTS[r.nextInt(KrustyData.INGREDIENTS.length)][0];
+            return post("/ingredients/" + encode(ingredient) + "/deliveries",
+                "{\"quantity\": 1000, \"deliveryTime\": \"" + KrustyData.DELIVERY_TIME + "\"}");
+        }, 201);
+        route("GET /cookies", 12, r -> get("/cookies"), 200);
+        route("GET /cookies/:cookieName/recipe", 12,
+            r -> get("/cookies/" + encode(cookie(r)) + "/recipe"), 200);
+        route("POST /pallets", 15, r -> post("/pallets", "{\"cookie\": \"" + cookie(r) + "\"}"), 201);
+        route("GET /pallets", 8, r -> get("/pallets?limit=100"), 200);
+        route("GET /pallets?cookie", 8,
+            r -> get("/pallets?limit=100&cookie=" + encode(cookie(r))), 200);
+        route("GET /pallets?after&before", 6,
+            r -> get("/pallets?limit=100&after=" + today.minusDays(2) + "&before=" + today.plusDays(1)), 200);
+        route("POST /cookies/:cookieName/block", 1,
+            r -> post(blockPath("block", cookie(r), today), ""), 200);
+        route("POST /cookies/:cookieName/unblock", 1,
+            r -> post(blockPath("unblock", cookie(r), today), ""), 200);
+    }
+
+    private static String blockPath(String action, String cookie, java.time.LocalDate today) {
+        var after = today.minusDays(1);
+        var before = today.plusDays(1);
+        return "/cookies/" + encode(cookie) + "/" + action + "?after=" + after + "&before=" + before;
+    }
+
+    private static String cookie(Random r) {
+        return COOKIES[r.nextInt(COOKIES.length)];
+    }
+
+    private void route(String name, int weight, RequestFactory factory, int... ok) {
+        routes.add(new Route(name, weight, factory, ok));
+        totalWeight += weight;
+    }
+
+    /**
+     * Runs concurrency clients for seconds, each sending requests
+     * picked at random from the mix until time is up.
+     */
+    private void run(int concurrency, int seconds) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        try (var executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int i = 0; i < concurrency; i++) {
+                executor.submit(() -> {
+                    var random = ThreadLocalRandom.current();
+                    while (System.nanoTime() < deadline) {
+                        pick(random).call(this, random);
+                    }
+                });
+            }
+        }
+    }
+
+    private Route pick(Random random) {
+        int n = random.nextInt(totalWeight);
+        for (var route : routes) {
+            n -= route.weight;
+            if (n < 0) {
+                return route;
+            }
+        }
+        return routes.get(routes.size() - 1);
+    }
+
+    private void report(double seconds) {
+        System.out.println();
+        System.out.printf("%-42s %9s %9s %7s %9s %9s %9s %9s %9s%n",
+            "route", "requests", "req/s", "errors", "p50 ms", "p90 ms", "p99 ms", "p99.9 ms", "max ms");
+
+        var total = new Histogram(3);
+        long requests = 0, errors = 0;
+        for (var route : routes) {
+            var h = route.latencies.getIntervalHistogram();
+            total.add(h);
+            long count = h.getTotalCount();
+            long failed = route.errors.sum();
+            requests += count;
+            errors += failed;
+            print(route.name, h, count, failed, seconds);
+        }
+        System.out.println();
+        print("all routes", total, requests, errors, seconds);
+    }
+
+    private static void print(String name, Histogram h, long count, long errors, double seconds) {
+        System.out.printf("%-42s %9d %9.1f %6.2f%% %9.2f %9.2f %9.2f %9.2f %9.2f%n",
+            name, count, count / seconds, count == 0 ? 0.0 : 100.0 * errors / count,
+            ms(h.getValueAtPercentile(50)), ms(h.getValueAtPercentile(90)),
+            ms(h.getValueAtPercentile(99)), ms(h.getValueAtPercentile(99.9)), ms(h.getMaxValue()));
+    }
+
+    private static double ms(long micros) {
+        return micros / 1000.0;
+    }
+
+    private HttpRequest get(String path) {
+        return HttpRequest.newBuilder(URI.create(base + path)).GET().build();
+    }
+
+    private HttpRequest post(String path, String body) {
+        return HttpRequest.newBuilder(URI.create(base + path))
+            .header("Content-Type", "application/json")
+            .POST(HttpRequest.BodyPublishers.ofString(body))
+            .build();
+    }
+
+    private HttpResponse<String> send(String method, String path, String body) throws Exception {
+        var request = method.equals("GET") ? get(path) : post(path, body == null ? "" : body);
+        return client.send(request, HttpResponse.BodyHandlers.ofString());
+    }
+
+    private static void expect(HttpResponse<String> response, int status) {
+        if (response.statusCode() != status) {
+            throw new IllegalStateException(response.request().method() + " " + response.request().uri()
+                + " answered " + response.statusCode() + ", expected " + status);
+        }
+    }
+
+    private static String json(String... fields) {
+        var sb = new StringBuilder("{");
+        for (int i = 0; i < fields.length; i += 2) {
+            sb.append(i == 0 ? "" : ", ").append('"').append(fields[i]).append("\": \"")
+                .append(fields[i + 1]).append('"');
+        }
+        return sb.append('}').toString();
+    }
+
+    private static String encode(String s) {
+        return URLEncoder.encode(s, StandardCharsets.UTF_8).replace("+", "%20");
+    }
+
+    private interface RequestFactory {
+        HttpRequest create(Random random);
+    }
+
+    /**
+     * One kind of request in the mix, with its latencies and errors.
+     */
+    private static class Route {
+        private final String name;
+        private final int weight;
+        private final RequestFactory factory;
+        private final int[] ok;
+        private final Recorder latencies = new Recorder(3);
+        private final LongAdder errors = new LongAdder();
+
+        Route(String name, int weight, RequestFactory factory, int[] ok) {
+            this.name = name;
+            this.weight = weight;
+            this.factory = factory;
+            this.ok = ok;
+        }
+
+        void call(LoadTest test, Random random) {
+            var request = factory.create(random);
+            long start = System.nanoTime();
+            boolean success = false;
+            try {
+                var response = test.client.send(request, HttpResponse.BodyHandlers.discarding());
+                success = Arrays.stream(ok).anyMatch(s -> s == response.statusCode());
+            } catch (Exception e) {
+                // Counted as an error below.
+            }
+            latencies.recordValue(Math.max(1, (System.nanoTime() - start) / 1000));
+            if (!success) {
+                errors.increment();
+            }
+        }
+
+        void reset() {
+            latencies.reset();
+            errors.reset();
+        }
+    }
+}
@@ -2,63 +2,167 @@ package gradle.app;
 
 import static spark.Spark.*;
 
+import spark.Route;
+import spark.embeddedserver.EmbeddedServers;
+import spark.embeddedserver.jetty.EmbeddedJettyFactory;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Path;
+
 public class App {
-    private Database db = new Database();
+
+    private Config config = Config.load();
+    private Database db = new Database(config);
+    private RequestLimiter limiter = new RequestLimiter(config.maxInFlight(), config.admitTimeoutMillis());
+    private StartupWarmup warmup = new StartupWarmup();
 
     public static void main(String[] args) {
         new App().run();
     }
 
     void run() {
-
-        port(8888);
-        db.openConnection("C:\\Programmering\\GitLabProjects\\EDAF75\\project-db.sqlite");
-
-        /* POST /reset OK */
-        post("/reset", (req, res) -> db.reset(req, res));
+        long start = System.nanoTime();
+
+        switch (config.threads()) {
+            case "virtual":
+                EmbeddedServers.add(EmbeddedServers.defaultIdentifier(),
+                    new EmbeddedJettyFactory().withThreadPool(new VirtualThreadPool()));
+                break;
+            case "pooled":
+                break;
+            default:
+                throw new IllegalArgumentException("krusty.threads must be pooled or virtual, not " + config.threads());
+        }
+
+        port(config.port());
+        if (!db.openConnection(config.database())) {
+            System.err.println("Could not open " + config.database());
+            System.exit(1);
+        }
+        long opened = System.nanoTime();
+        exportMetrics();
+
+        /* Answers 503 until the warm-up below is done */
+        before(warmup.gate());
+
+        /* GET /metrics, not limited so it can be scraped under load */
+        get("/metrics", (req, res) -> db.getMetrics(req, res));
+
+        /* POST /reset?snapshot=<name> OK */
+        post("/reset", route("POST /reset", (req, res) -> db.reset(req, res)));
+
+        /* POST /snapshots/<name>, restored by POST /reset?snapshot=<name> */
+        post("/snapshots/:name", route("POST /snapshots/:name", (req, res) -> db.saveSnapshot(req, res, req.params(":name"))));
 
         /* ------- /CUSTOMERS --------- */
 
         /* POST /customers OK */
-        post("/customers", (req, res) -> db.addCustomers(req, res));
+        post("/customers", route("POST /customers", (req, res) -> db.addCustomers(req, res)));
 
         /* GET /customers OK */
-        get("/customers", (req, res) -> db.getCustomers(req, res));
+        get("/customers", route("GET /customers", (req, res) -> db.getCustomers(req, res)));
 
         /* ------- /INGREDIENTS -------- */
 
         /* POST /ingredients OK */
-        post("/ingredients", (req, res) -> db.addMaterials(req, res));
+        post("/ingredients", route("POST /ingredients", (req, res) -> db.addMaterials(req, res)));
 
         /* POST /ingredients/<ingredientNameEncoded>/deliveries OK */
-        post("/ingredients/:ingredient/deliveries", (req, res) -> db.addDelivery(req, res, req.params(":ingredient")));
+        post("/ingredients/:ingredient/deliveries", route("POST /ingredients/:ingredient/deliveries", (req, res) -> db.addDelivery(req, res, req.params(":ingredient"))));
 
         /* GET /ingredients OK */
-        get("/ingredients", (req, res) -> db.getMaterials(req, res));
+        get("/ingredients", route("GET /ingredients", (req, res) -> db.getMaterials(req, res)));
 
         /* --------- /COOKIES ---------- */
 
         /* POST /cookies OK */
-        post("/cookies", (req, res) -> db.addCookie(req, res));
+        post("/cookies", route("POST /cookies", (req, res) -> db.addCookie(req, res)));
 
         /* GET /cookies OK */
-        get("/cookies", (req, res) -> db.getCookies(req, res));
+        get("/cookies", route("GET /cookies", (req, res) -> db.getCookies(req, res)));
 
         /* GET /cookies/<cookie-name>/recipe OK */
-        get("/cookies/:cookieName/recipe", (req, res) -> db.getCookie(req, res, req.params(":cookieName")));
+        get("/cookies/:cookieName/recipe", route("GET /cookies/:cookieName/recipe", (req, res) -> db.getCookie(req, res, req.params(":cookieName"))));
 
-        /* POST /cookies/<cookie_name>/block PROBLEM MED INLÄSNING? */
-        post("/cookies/:cookieName/block/:after/:before", (req, res) -> db.block(req, res, req.params(":cookieName")));
+        /* POST /cookies/<cookie_name>/block?after=<date>&before=<date> */
+        post("/cookies/:cookieName/block", route("POST /cookies/:cookieName/block", (req, res) -> db.block(req, res, req.params(":cookieName"))));
 
-        /* POST /cookies/<cookie_name_encoded>/unblock PROBLEM MED INLÄSNING? */
-        post("/cookies/:cookieName/unblock/:after/:before", (req, res) -> db.unblock(req, res, req.params(":cookieName")));
+        /* POST /cookies/<cookie_name_encoded>/unblock?after=<date>&before=<date> */
+        post("/cookies/:cookieName/unblock", route("POST /cookies/:cookieName/unblock", (req, res) -> db.unblock(req, res, req.params(":cookieName"))));
 
         /* --------- /PALLETS ---------- */
 
         /* POST /pallets OK */
-        post("/pallets", (req, res) -> db.newPallet(req, res));
+        post("/pallets", route("POST /pallets", (req, res) -> db.newPallet(req, res)));
+
+        /* POST /pallets/batch */
+        post("/pallets/batch", route("POST /pallets/batch", (req, res) -> db.newPallets(req, res)));
 
         /* GET /pallets/<cookie_name>/:after/:before PROBLEM MED INLÄSNING? */
-        get("/pallets", (req, res) -> db.getPallets(req, res));
+        get("/pallets", route("GET /pallets", (req, res) -> db.getPallets(req, res)));
+
+        /* --------- /ORDERS ---------- */
+
+        /* POST /orders */
+        post("/orders", route("POST /orders", (req, res) -> db.addOrder(req, res)));
+
+        /* GET /orders/<id> */
+        get("/orders/:id", route("GET /orders/:id", (req, res) -> db.getOrder(req, res, req.params(":id"))));
+
+        awaitInitialization();
+        warmUp();
+        long ready = System.nanoTime();
+        warmup.done();
+
+        startup("database", opened - start);
+        startup("warmup", ready - opened);
+        startup("total", ready - start);
+        System.out.printf("Ready on port %d in %d ms (database %d ms, warm-up %d ms, %d requests), %d ms after JVM start%n",
+            config.port(), (ready - start) / 1_000_000, (opened - start) / 1_000_000,
+            (ready - opened) / 1_000_000, warmup.requests(),
+            ManagementFactory.getRuntimeMXBean().getUptime());
+    }
+
+    /**
+     * Reads the database into the page cache and runs the hot
+     * endpoints, unless krusty.warmupMillis is 0. A failed warm-up only
+     * leaves the server colder.
+     */
+    private void warmUp() {
+        if (config.warmupMillis() <= 0) {
+            return;
+        }
+        try {
+            StartupWarmup.readFile(Path.of(config.database()), config.mmapSize());
+            warmup.run(config.port(), db, config.warmupMillis());
+        } catch (IOException e) {
+            e.printStackTrace();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void startup(String phase, long nanos) {
+        db.metrics().gauge("krusty_startup_seconds", "phase=\"" + phase + "\"",
+            "Time spent starting the server, per phase.", () -> nanos / 1e9);
+    }
+
+    /**
+     * Wraps a route in the request limiter and times it under name.
+     */
+    private Route route(String name, Route route) {
+        return db.metrics().timed(name, limiter.guard(route));
+    }
+
+    private void exportMetrics() {
+        var metrics = db.metrics();
+        metrics.gauge("krusty_requests_in_flight", "",
+            "Requests inside the database layer.", () -> limiter.inFlight());
+        metrics.gauge("krusty_requests_waiting", "",
+            "Requests waiting for the request limiter.", () -> limiter.waiting());
+        metrics.counter("krusty_requests_rejected_total", "",
+            "Requests answered with 503 by the request limiter.", () -> limiter.rejected());
+        metrics.counter("krusty_request_limiter_wait_seconds_total", "",
+            "Time spent waiting for the request limiter.", () -> limiter.waitNanos() / 1e9);
     }
 }
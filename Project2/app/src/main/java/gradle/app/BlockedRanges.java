@@ -0,0 +1,608 @@
+package gradle.app;
+
+import com.google.gson.stream.JsonWriter;
+import java.io.IOException;
+import java.sql.*;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * BlockedRanges holds which pallets are blocked, as ranges of
+ * production dates per product rather than a flag on every pallet.
+ * Blocking or unblocking a range rewrites the few ranges of one
+ * product in the blockedRanges table, however many pallets fall in
+ * it.
+ *
+ * Blocking applies to the pallets that have been baked by then, not to
+ * those baked later, so each range also holds the last pallet number
+ * it covers. Pallet numbers are the rowids of pallets, which grow in
+ * the order pallets are baked; nothing here VACUUMs, which could
+ * renumber them. A pallet is blocked if its production date lies in a
+ * range of its product and its number is at most the range's last.
+ *
+ * The ranges of a product are kept disjoint and sorted, so looking one
+ * date up is a binary search over a small array. Ranges are whole
+ * days, with both ends included, and an end that is null is open.
+ * Neighbouring ranges are merged if they cover the same pallets.
+ *
+ * Pallets that were blocked one by one, through isBlocked, before
+ * there were ranges are kept as they were, in blockedPallets, rather
+ * than widened to ranges that would block their neighbours too. They
+ * are blocked whatever the ranges say, until a range they lie in is
+ * unblocked.
+ *
+ * The tables are read into memory when the database is opened, and
+ * each change is installed once the write holding it has committed.
+ */
+public class BlockedRanges {
+    private final ConcurrentHashMap<String, List<Range>> ranges = new ConcurrentHashMap<>();
+    private final Set<String> pallets = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Whether the pallet palletId of product, produced on date with the
+     * pallet number number, is blocked.
+     */
+    public boolean isBlocked(String palletId, String product, String date, long number) {
+        if (pallets.contains(palletId)) {
+            return true;
+        }
+        var found = product == null ? null : ranges.get(product);
+        return found != null && blocks(found, date, number);
+    }
+
+    /**
+     * Whether one of the sorted, disjoint ranges blocks the pallet with
+     * number, produced on date.
+     */
+    public static boolean blocks(List<Range> ranges, String date, long number) {
+        var range = find(ranges, date);
+        return range != null && number <= range.lastPallet;
+    }
+
+    /**
+     * The range of the sorted, disjoint ranges that date lies in.
+     *
+     * @return the range, or null if date is in none of them.
+     */
+    public static Range find(List<Range> ranges, String date) {
+        if (date == null) {
+            return null;
+        }
+
+        // The last range starting on or before date.
+        int low = 0;
+        int high = ranges.size() - 1;
+        int at = -1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            var from = ranges.get(mid).from;
+            if (from == null || compareDay(date, from) >= 0) {
+                at = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        if (at < 0) {
+            return null;
+        }
+        var found = ranges.get(at);
+        return found.to == null || compareDay(date, found.to) <= 0 ? found : null;
+    }
+
+    /**
+     * The blocked ranges of product, in order.
+     */
+    public List<Range> get(String product) {
+        return ranges.getOrDefault(product, List.of());
+    }
+
+    /**
+     * Installs the ranges of product, after the write that stored
+     * them has committed.
+     */
+    public void set(String product, List<Range> blocked) {
+        if (blocked.isEmpty()) {
+            ranges.remove(product);
+        } else {
+            ranges.put(product, List.copyOf(blocked));
+        }
+    }
+
+    /**
+     * Forgets every range and blocked pallet, when the tables have been
+     * emptied.
+     */
+    public void clear() {
+        ranges.clear();
+        pallets.clear();
+    }
+
+    public int size() {
+        return ranges.values().stream().mapToInt(List::size).sum();
+    }
+
+    static final String SELECT_ALL =
+        """
+        SELECT productName, fromDate, toDate, lastPallet
+        FROM   blockedRanges
+        """;
+
+    static final String SELECT_ALL_PALLETS =
+        """
+        SELECT palletId
+        FROM   blockedPallets
+        """;
+
+    /**
+     * Replaces everything held here with the contents of blockedRanges
+     * and blockedPallets.
+     */
+    public void load(ConnectionPool.PooledConnection c) throws SQLException {
+        var found = new HashMap<String, List<Range>>();
+        try (var rs = c.prepare(SELECT_ALL).executeQuery()) {
+            while (rs.next()) {
+                var product = rs.getString("productName");
+                var range = Range.fromRS(rs);
+                found.put(product, add(found.getOrDefault(product, List.of()), range));
+            }
+        }
+        var ids = new HashSet<String>();
+        try (var rs = c.prepare(SELECT_ALL_PALLETS).executeQuery()) {
+            while (rs.next()) {
+                ids.add(rs.getString("palletId"));
+            }
+        }
+
+        // Dropped and added rather than cleared first, so that a lookup
+        // meanwhile never finds a pallet unblocked that stays blocked.
+        ranges.keySet().retainAll(found.keySet());
+        for (var entry : found.entrySet()) {
+            set(entry.getKey(), entry.getValue());
+        }
+        pallets.retainAll(ids);
+        pallets.addAll(ids);
+    }
+
+    static final String SELECT_PRODUCT =
+        """
+        SELECT fromDate, toDate, lastPallet
+        FROM   blockedRanges
+        WHERE  productName = ?
+        """;
+
+    /**
+     * Reads the ranges of product in tx, including changes made
+     * earlier in the same transaction.
+     */
+    public List<Range> read(WritePipeline.Transaction tx, String product) throws SQLException {
+        List<Range> found = List.of();
+        var ps = tx.prepare(SELECT_PRODUCT);
+        ps.setString(1, product);
+        try (var rs = ps.executeQuery()) {
+            while (rs.next()) {
+                found = add(found, Range.fromRS(rs));
+            }
+        }
+        return found;
+    }
+
+    static final String DELETE_PRODUCT =
+        """
+        DELETE FROM blockedRanges
+        WHERE  productName = ?
+        """;
+
+    static final String INSERT_RANGE =
+        """
+        INSERT
+        INTO    blockedRanges(productName, fromDate, toDate, lastPallet)
+        VALUES  (?, ?, ?, ?)
+        """;
+
+    /**
+     * Replaces the ranges of product in tx, and installs them here once
+     * tx has committed.
+     */
+    public void write(WritePipeline.Transaction tx, String product, List<Range> blocked)
+            throws SQLException {
+        var ps = tx.prepare(DELETE_PRODUCT);
+        ps.setString(1, product);
+        ps.executeUpdate();
+
+        if (!blocked.isEmpty()) {
+            ps = tx.prepare(INSERT_RANGE);
+            for (var range : blocked) {
+                ps.setString(1, product);
+                ps.setString(2, range.from);
+                ps.setString(3, range.to);
+                ps.setLong(4, range.lastPallet);
+                ps.addBatch();
+            }
+            ps.executeBatch();
+        }
+
+        tx.afterCommit(() -> set(product, blocked));
+    }
+
+    static final String SELECT_BLOCKED_PALLETS =
+        """
+        SELECT palletId
+        FROM   blockedPallets
+        WHERE  productName = ?
+        """;
+
+    static final String SELECT_PALLETS =
+        """
+        SELECT rowid AS palletNumber, palletId, productionDate
+        FROM   pallets
+        WHERE  productName = ?
+        """;
+
+    /**
+     * query for the days of a range, from its first day if from and up
+     * to its last if to.
+     */
+    static String inRange(String query, boolean from, boolean to) {
+        query += from ? " AND productionDate >= ?" : "";
+        query += to ? " AND productionDate < ?" : "";
+        return query;
+    }
+
+    /**
+     * Prepares query in tx for the pallets of product in range.
+     */
+    private static PreparedStatement prepare(WritePipeline.Transaction tx, String query, String product,
+            Range range) throws SQLException {
+        var ps = tx.prepare(inRange(query, range.from != null, range.to != null));
+        int index = 0;
+        ps.setString(++index, product);
+        if (range.from != null) {
+            ps.setString(++index, range.from);
+        }
+        if (range.to != null) {
+            ps.setString(++index, day(range.to, 1));
+        }
+        return ps;
+    }
+
+    /**
+     * The pallets of product blocked one by one and produced in range,
+     * read in tx.
+     */
+    public Set<String> readPallets(WritePipeline.Transaction tx, String product, Range range)
+            throws SQLException {
+        var found = new HashSet<String>();
+        try (var rs = prepare(tx, SELECT_BLOCKED_PALLETS, product, range).executeQuery()) {
+            while (rs.next()) {
+                found.add(rs.getString("palletId"));
+            }
+        }
+        return found;
+    }
+
+    static final String DELETE_PALLET =
+        """
+        DELETE FROM blockedPallets
+        WHERE  palletId = ?
+        """;
+
+    /**
+     * Unblocks the pallets of product blocked one by one and produced
+     * in range, in tx, and forgets them here once tx has committed.
+     *
+     * @return the pallets unblocked.
+     */
+    public Set<String> unblockPallets(WritePipeline.Transaction tx, String product, Range range)
+            throws SQLException {
+        var found = readPallets(tx, product, range);
+        if (found.isEmpty()) {
+            return found;
+        }
+        var ps = tx.prepare(DELETE_PALLET);
+        for (var id : found) {
+            ps.setString(1, id);
+            ps.addBatch();
+        }
+        ps.executeBatch();
+        tx.afterCommit(() -> pallets.removeAll(found));
+        return found;
+    }
+
+    static final String SELECT_LAST_PALLET =
+        """
+        SELECT max(rowid) AS palletNumber
+        FROM   pallets
+        """;
+
+    /**
+     * The number of the last pallet baked, as seen in tx, or 0 if there
+     * are none.
+     */
+    public static long lastPallet(WritePipeline.Transaction tx) throws SQLException {
+        try (var rs = tx.prepare(SELECT_LAST_PALLET).executeQuery()) {
+            return rs.next() ? rs.getLong("palletNumber") : 0;
+        }
+    }
+
+    /**
+     * Blocks the pallets of product produced in range that have been
+     * baked by now, in tx.
+     *
+     * @return the ranges of product after, and how many pallets were
+     *         not blocked before.
+     */
+    public Change block(WritePipeline.Transaction tx, String product, Range range) throws SQLException {
+        var current = read(tx, product);
+        var changed = count(tx, product, range, current, readPallets(tx, product, range), false);
+        var blocked = add(current, range.upTo(lastPallet(tx)));
+        write(tx, product, blocked);
+        return new Change(blocked, changed);
+    }
+
+    /**
+     * Unblocks the pallets of product produced in range, in tx, both
+     * those in blocked ranges and those blocked one by one.
+     *
+     * @return the ranges of product after, and how many pallets were
+     *         blocked before.
+     */
+    public Change unblock(WritePipeline.Transaction tx, String product, Range range) throws SQLException {
+        var current = read(tx, product);
+        var changed = count(tx, product, range, current, unblockPallets(tx, product, range), true);
+        var kept = remove(current, range);
+        write(tx, product, kept);
+        return new Change(kept, changed);
+    }
+
+    /**
+     * Counts the pallets of product produced in range that ranges and
+     * the pallets blocked one by one block, if blocked, or else those
+     * they don't. This reads the pallets along pallets_by_product, but
+     * writes none of them.
+     */
+    private static long count(WritePipeline.Transaction tx, String product, Range range,
+            List<Range> ranges, Set<String> blockedPallets, boolean blocked) throws SQLException {
+        long count = 0;
+        try (var rs = prepare(tx, SELECT_PALLETS, product, range).executeQuery()) {
+            while (rs.next()) {
+                boolean isBlocked = blockedPallets.contains(rs.getString("palletId"))
+                    || blocks(ranges, rs.getString("productionDate"), rs.getLong("palletNumber"));
+                if (isBlocked == blocked) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Adds range to the sorted, disjoint ranges. Where they overlap,
+     * the larger last pallet is kept, since blocking the pallets up to
+     * one number also blocks those up to a smaller one.
+     */
+    public static List<Range> add(List<Range> ranges, Range range) {
+        var pieces = new ArrayList<Range>(remove(ranges, range));
+        List<Range> rest = List.of(range);
+        for (var r : ranges) {
+            var overlap = intersect(r, range);
+            if (overlap != null && r.lastPallet > range.lastPallet) {
+                pieces.add(overlap);
+                rest = remove(rest, overlap);
+            }
+        }
+        pieces.addAll(rest);
+        pieces.sort(BlockedRanges::compareFrom);
+        return merge(pieces);
+    }
+
+    /**
+     * Cuts range out of the sorted, disjoint ranges. What is left of
+     * each keeps its last pallet.
+     */
+    public static List<Range> remove(List<Range> ranges, Range range) {
+        var kept = new ArrayList<Range>(ranges.size() + 1);
+        for (var r : ranges) {
+            if (!overlaps(r, range)) {
+                kept.add(r);
+                continue;
+            }
+            if (range.from != null && (r.from == null || r.from.compareTo(range.from) < 0)) {
+                kept.add(new Range(r.from, day(range.from, -1), r.lastPallet));
+            }
+            if (range.to != null && (r.to == null || r.to.compareTo(range.to) > 0)) {
+                kept.add(new Range(day(range.to, 1), r.to, r.lastPallet));
+            }
+        }
+        return kept;
+    }
+
+    /**
+     * Merges neighbouring ranges of the sorted, disjoint ranges that
+     * have the same last pallet.
+     */
+    private static List<Range> merge(List<Range> ranges) {
+        var merged = new ArrayList<Range>(ranges.size());
+        for (var r : ranges) {
+            var last = merged.isEmpty() ? null : merged.get(merged.size() - 1);
+            if (last != null && last.to != null && r.from != null && last.lastPallet == r.lastPallet
+                    && day(last.to, 1).equals(r.from)) {
+                merged.set(merged.size() - 1, new Range(last.from, r.to, r.lastPallet));
+            } else {
+                merged.add(r);
+            }
+        }
+        return merged;
+    }
+
+    /**
+     * The days a and b have in common, with the last pallet of a, or
+     * null if they have none.
+     */
+    private static Range intersect(Range a, Range b) {
+        if (!overlaps(a, b)) {
+            return null;
+        }
+        return new Range(later(a.from, b.from), earlier(a.to, b.to), a.lastPallet);
+    }
+
+    /**
+     * The later of two first days, where null is open.
+     */
+    private static String later(String from, String other) {
+        return from == null ? other : other == null || from.compareTo(other) >= 0 ? from : other;
+    }
+
+    /**
+     * The earlier of two last days, where null is open.
+     */
+    private static String earlier(String to, String other) {
+        return to == null ? other : other == null || to.compareTo(other) <= 0 ? to : other;
+    }
+
+    private static boolean overlaps(Range a, Range b) {
+        return (a.to == null || b.from == null || b.from.compareTo(a.to) <= 0)
+            && (b.to == null || a.from == null || a.from.compareTo(b.to) <= 0);
+    }
+
+    /**
+     * Orders ranges by their first day, an open one first.
+     */
+    private static int compareFrom(Range a, Range b) {
+        if (a.from == null || b.from == null) {
+            return a.from == null ? (b.from == null ? 0 : -1) : 1;
+        }
+        return a.from.compareTo(b.from);
+    }
+
+    /**
+     * The day offset days from date.
+     */
+    public static String day(String date, int offset) {
+        return LocalDate.parse(date).plusDays(offset).toString();
+    }
+
+    /**
+     * Compares the day of date, which may carry a time after it, with
+     * day.
+     */
+    private static int compareDay(String date, String day) {
+        int length = Math.min(date.length(), day.length());
+        for (int i = 0; i < length; i++) {
+            int diff = date.charAt(i) - day.charAt(i);
+            if (diff != 0) {
+                return diff;
+            }
+        }
+        return date.length() < day.length() ? -1 : 0;
+    }
+
+    /**
+     * The ranges of a product after blocking or unblocking, and how
+     * many pallets that changed.
+     */
+    public static class Change {
+        private final List<Range> ranges;
+        private final long pallets;
+
+        public Change(List<Range> ranges, long pallets) {
+            this.ranges = ranges;
+            this.pallets = pallets;
+        }
+
+        public List<Range> ranges() {
+            return ranges;
+        }
+
+        public long pallets() {
+            return pallets;
+        }
+    }
+
+    /**
+     * A range of days, both ends included, where a null end is open,
+     * and the last pallet number it blocks. An open end and the last
+     * pallet are left out of its JSON.
+     */
+    public static class Range {
+        private final String from;
+        private final String to;
+        private final long lastPallet;
+
+        /**
+         * A range that covers every pallet, whenever baked.
+         */
+        public Range(String from, String to) {
+            this(from, to, Long.MAX_VALUE);
+        }
+
+        public Range(String from, String to, long lastPallet) {
+            this.from = from;
+            this.to = to;
+            this.lastPallet = lastPallet;
+        }
+
+        static Range fromRS(ResultSet rs) throws SQLException {
+            return new Range(rs.getString("fromDate"), rs.getString("toDate"), rs.getLong("lastPallet"));
+        }
+
+        /**
+         * The first day, or null if open.
+         */
+        public String from() {
+            return from;
+        }
+
+        /**
+         * The last day, or null if open.
+         */
+        public String to() {
+            return to;
+        }
+
+        /**
+         * The number of the last pallet blocked.
+         */
+        public long lastPallet() {
+            return lastPallet;
+        }
+
+        /**
+         * The same days, up to the pallet numbered lastPallet.
+         */
+        public Range upTo(long lastPallet) {
+            return new Range(from, to, lastPallet);
+        }
+
+        /**
+         * The days strictly between after and before, the way block
+         * and unblock take them.
+         *
+         * @param after a date, or null.
+         * @param before a date, or null.
+         * @return the range, or null if no day lies between them.
+         * @throws IllegalArgumentException if a date is malformed.
+         */
+        public static Range between(String after, String before) {
+            try {
+                var from = after == null ? null : LocalDate.parse(after).plusDays(1);
+                var to = before == null ? null : LocalDate.parse(before).minusDays(1);
+                if (from != null && to != null && from.isAfter(to)) {
+                    return null;
+                }
+                return new Range(from == null ? null : from.toString(), to == null ? null : to.toString());
+            } catch (DateTimeParseException e) {
+                throw new IllegalArgumentException("Bad date: " + e.getParsedString(), e);
+            }
+        }
+
+        public void toJson(JsonWriter out) throws IOException {
+            out.beginObject();
+            out.name("from").value(from);
+            out.name("to").value(to);
+            out.endObject();
+        }
+    }
+}
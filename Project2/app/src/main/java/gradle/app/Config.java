@@ -0,0 +1,260 @@
+package gradle.app;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * Config holds the settings of the server. Each setting has a key such
+ * as krusty.port, and is taken from a system property
+ * (-Dkrusty.port=8080) if set, else from an environment variable
+ * (KRUSTY_PORT=8080), else from the properties file named by
+ * krusty.config, which is krusty.properties in the working directory
+ * if there is one, and else has the default given here.
+ */
+public class Config {
+
+    private static final String DEFAULT_FILE = "krusty.properties";
+
+    private final Map<String, String> env;
+    private final Properties file;
+    private final Properties system;
+
+    private final int port;
+    private final String database;
+    private final String schema;
+    private final int readers;
+    private final long checkoutTimeoutMillis;
+    private final int statementCacheSize;
+    private final PragmaProfile pragmas;
+    private final long mmapSize;
+    private final int cacheSize;
+    private final String threads;
+    private final int maxInFlight;
+    private final long admitTimeoutMillis;
+    private final String snapshots;
+    private final long warmupMillis;
+
+    private Config(Map<String, String> env, Properties file, Properties system) {
+        this.env = env;
+        this.file = file;
+        this.system = system;
+
+        port = integer("krusty.port", 8888);
+        database = string("krusty.database", "project-db.sqlite");
+        schema = string("krusty.schema", null);
+        readers = integer("krusty.readers", Runtime.getRuntime().availableProcessors());
+        checkoutTimeoutMillis = number("krusty.checkoutTimeoutMillis", 5000);
+        statementCacheSize = integer("krusty.statementCacheSize", 64);
+        pragmas = PragmaProfile.parse(string("krusty.pragmas", "durable"));
+        mmapSize = number("krusty.mmapSize", pragmas.mmapSize());
+        cacheSize = integer("krusty.cacheSize", pragmas.cacheSize());
+        threads = string("krusty.threads", "pooled");
+        maxInFlight = integer("krusty.maxInFlight", 128);
+        admitTimeoutMillis = number("krusty.admitTimeoutMillis", 1000);
+        snapshots = string("krusty.snapshots", "snapshots");
+        warmupMillis = number("krusty.warmupMillis", 2000);
+    }
+
+    /**
+     * Reads the settings from the system properties, the environment
+     * and the properties file.
+     *
+     * @throws IllegalArgumentException if the file named by
+     *         krusty.config can't be read, or a setting is malformed.
+     */
+    public static Config load() {
+        var system = System.getProperties();
+        var env = System.getenv();
+        var name = system.getProperty("krusty.config", env.get(envName("krusty.config")));
+
+        var file = new Properties();
+        var path = Path.of(name != null ? name : DEFAULT_FILE);
+        if (name != null || Files.isRegularFile(path)) {
+            try (Reader in = Files.newBufferedReader(path)) {
+                file.load(in);
+            } catch (IOException e) {
+                throw new IllegalArgumentException("Can't read " + path, e);
+            }
+        }
+        return new Config(env, file, system);
+    }
+
+    /**
+     * The defaults alone, for benchmarks.
+     */
+    public static Config defaults() {
+        return of(new Properties());
+    }
+
+    /**
+     * The settings in properties and the defaults for the rest, for
+     * benchmarks.
+     */
+    public static Config of(Properties properties) {
+        return new Config(Map.of(), properties, new Properties());
+    }
+
+    /**
+     * The value of key, or null if none is set.
+     */
+    private String get(String key) {
+        var value = system.getProperty(key);
+        if (value == null) {
+            value = env.get(envName(key));
+        }
+        if (value == null) {
+            value = file.getProperty(key);
+        }
+        return value == null ? null : value.trim();
+    }
+
+    private String string(String key, String defaultValue) {
+        var value = get(key);
+        return value == null || value.isEmpty() ? defaultValue : value;
+    }
+
+    private int integer(String key, int defaultValue) {
+        var value = string(key, null);
+        try {
+            return value == null ? defaultValue : Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(key + " must be a number, not " + value);
+        }
+    }
+
+    private long number(String key, long defaultValue) {
+        var value = string(key, null);
+        try {
+            return value == null ? defaultValue : Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(key + " must be a number, not " + value);
+        }
+    }
+
+    /**
+     * The environment variable of key: krusty.maxInFlight is read from
+     * KRUSTY_MAX_IN_FLIGHT.
+     */
+    private static String envName(String key) {
+        var name = new StringBuilder();
+        for (int i = 0; i < key.length(); i++) {
+            char c = key.charAt(i);
+            if (c == '.') {
+                name.append('_');
+            } else if (Character.isUpperCase(c)) {
+                name.append('_').append(c);
+            } else {
+                name.append(Character.toUpperCase(c));
+            }
+        }
+        return name.toString();
+    }
+
+    /**
+     * The port the server listens on.
+     */
+    public int port() {
+        return port;
+    }
+
+    /**
+     * The SQLite file, project-db.sqlite in the working directory by
+     * default. It is created from the schema if missing.
+     */
+    public String database() {
+        return database;
+    }
+
+    /**
+     * The schema script a missing database is created from, or null
+     * for the project1-schema.sql packaged with the server.
+     */
+    public String schema() {
+        return schema;
+    }
+
+    /**
+     * The number of read connections.
+     */
+    public int readers() {
+        return readers;
+    }
+
+    /**
+     * How long an endpoint waits for a free connection.
+     */
+    public long checkoutTimeoutMillis() {
+        return checkoutTimeoutMillis;
+    }
+
+    /**
+     * Prepared statements kept per connection.
+     */
+    public int statementCacheSize() {
+        return statementCacheSize;
+    }
+
+    /**
+     * The PragmaProfile of every connection, durable (the default),
+     * balanced or fast.
+     */
+    public PragmaProfile pragmas() {
+        return pragmas;
+    }
+
+    /**
+     * PRAGMA mmap_size of every connection, how much of the file is
+     * read through memory mapping rather than read calls. Defaults to
+     * that of the profile.
+     */
+    public long mmapSize() {
+        return mmapSize;
+    }
+
+    /**
+     * PRAGMA cache_size of every connection, in pages, or in KiB if
+     * negative. Defaults to that of the profile.
+     */
+    public int cacheSize() {
+        return cacheSize;
+    }
+
+    /**
+     * How route handlers are run, "pooled" on Jetty's worker pool or
+     * "virtual" on a virtual thread each.
+     */
+    public String threads() {
+        return threads;
+    }
+
+    /**
+     * How many requests may be inside the database layer at once.
+     */
+    public int maxInFlight() {
+        return maxInFlight;
+    }
+
+    /**
+     * How long a request waits for its turn before it gets a 503.
+     */
+    public long admitTimeoutMillis() {
+        return admitTimeoutMillis;
+    }
+
+    /**
+     * Where named snapshots of the database are kept.
+     */
+    public String snapshots() {
+        return snapshots;
+    }
+
+    /**
+     * How long the hot endpoints are run before the server takes
+     * requests, or 0 to start cold.
+     */
+    public long warmupMillis() {
+        return warmupMillis;
+    }
+}
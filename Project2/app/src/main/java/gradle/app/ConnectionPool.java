@@ -0,0 +1,282 @@
+package gradle.app;
+
+import org.sqlite.SQLiteConfig;
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * ConnectionPool hands out connections to the SQLite3 file used by
+ * Database. Reads are spread over a bounded set of read-only
+ * connections, while every write goes through the one write
+ * connection, since SQLite only allows a single writer at a time.
+ * The file is put in WAL mode so that readers never wait for the
+ * writer, and every connection gets the pragmas of a PragmaProfile.
+ */
+public class ConnectionPool implements AutoCloseable {
+
+    private static final int BUSY_TIMEOUT_MILLIS = 5000;
+
+    private final BlockingQueue<PooledConnection> readers;
+    private final BlockingQueue<PooledConnection> writers;
+    private final List<PooledConnection> all = new ArrayList<>();
+    private final long timeoutMillis;
+    private final Stats readStats = new Stats();
+    private final Stats writeStats = new Stats();
+    private final StatementCache.Stats statementStats = new StatementCache.Stats();
+    private final int statementCacheSize;
+    private final int readerCount;
+    private WalCheckpointer checkpointer;
+
+    private ConnectionPool(int readerCount, long timeoutMillis, int statementCacheSize) {
+        this.timeoutMillis = timeoutMillis;
+        this.statementCacheSize = statementCacheSize;
+        this.readerCount = readerCount;
+        readers = new ArrayBlockingQueue<>(readerCount);
+        writers = new ArrayBlockingQueue<>(1);
+    }
+
+    /**
+     * Opens one write connection and readerCount read connections to
+     * the specified file.
+     *
+     * @param filename
+     * @param readerCount
+     * @param timeoutMillis how long a checkout may wait for a free connection.
+     * @param statementCacheSize prepared statements kept per connection.
+     * @param profile the pragmas of every connection.
+     * @param mmapSize PRAGMA mmap_size of every connection.
+     * @param cacheSize PRAGMA cache_size of every connection.
+     */
+    public static ConnectionPool open(String filename, int readerCount, long timeoutMillis,
+            int statementCacheSize, PragmaProfile profile, long mmapSize, int cacheSize)
+            throws SQLException {
+        var pool = new ConnectionPool(readerCount, timeoutMillis, statementCacheSize);
+        try {
+            pool.connect(filename, profile, mmapSize, cacheSize);
+        } catch (SQLException e) {
+            pool.close();
+            throw e;
+        }
+        return pool;
+    }
+
+    private void connect(String filename, PragmaProfile profile, long mmapSize, int cacheSize)
+            throws SQLException {
+        var writeConfig = new SQLiteConfig();
+        writeConfig.setBusyTimeout(BUSY_TIMEOUT_MILLIS);
+        // Set here because the PRAGMA is ignored inside a transaction,
+        // and the write pipeline keeps one open around every write.
+        writeConfig.enforceForeignKeys(true);
+        profile.apply(writeConfig, mmapSize, cacheSize);
+        var writer = connect(filename, writeConfig, writers);
+        writers.add(writer);
+
+        if (profile.checkpointMillis() > 0) {
+            try (var s = writer.createStatement()) {
+                s.execute("PRAGMA wal_autocheckpoint = " + WalCheckpointer.AUTOCHECKPOINT_FRAMES);
+            }
+            var conn = DriverManager.getConnection("jdbc:sqlite:" + filename, writeConfig.toProperties());
+            checkpointer = WalCheckpointer.start(conn, profile.checkpointMillis());
+        }
+
+        for (int i = 0; i < readerCount; i++) {
+            var readConfig = new SQLiteConfig();
+            readConfig.setReadOnly(true);
+            readConfig.setBusyTimeout(BUSY_TIMEOUT_MILLIS);
+            profile.apply(readConfig, mmapSize, cacheSize);
+            readers.add(connect(filename, readConfig, readers));
+        }
+    }
+
+    private PooledConnection connect(String filename, SQLiteConfig config,
+            BlockingQueue<PooledConnection> home) throws SQLException {
+        var conn = DriverManager.getConnection("jdbc:sqlite:" + filename, config.toProperties());
+        var pooled = new PooledConnection(conn, home,
+            new StatementCache(conn, statementCacheSize, statementStats));
+        all.add(pooled);
+        return pooled;
+    }
+
+    /**
+     * Checks out a read-only connection. Must be closed to be handed back.
+     */
+    public PooledConnection read() throws SQLException {
+        return checkout(readers, readStats, "read");
+    }
+
+    /**
+     * Checks out the write connection. Must be closed to be handed back.
+     */
+    public PooledConnection write() throws SQLException {
+        return checkout(writers, writeStats, "write");
+    }
+
+    private PooledConnection checkout(BlockingQueue<PooledConnection> queue, Stats stats,
+            String kind) throws SQLException {
+        long start = System.nanoTime();
+        PooledConnection c;
+        try {
+            c = queue.poll(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted waiting for a " + kind + " connection", e);
+        }
+        stats.record(System.nanoTime() - start, c != null);
+        if (c == null) {
+            throw new SQLException("Timed out waiting for a " + kind + " connection");
+        }
+        return c;
+    }
+
+    public int readerCount() {
+        return readerCount;
+    }
+
+    public Stats readStats() {
+        return readStats;
+    }
+
+    public Stats writeStats() {
+        return writeStats;
+    }
+
+    public StatementCache.Stats statementStats() {
+        return statementStats;
+    }
+
+    /**
+     * The background checkpointer, or null if SQLite checkpoints in
+     * commits.
+     */
+    public WalCheckpointer checkpointer() {
+        return checkpointer;
+    }
+
+    /**
+     * Closes every connection in the pool.
+     */
+    @Override
+    public void close() {
+        if (checkpointer != null) {
+            checkpointer.close();
+        }
+        for (var c : all) {
+            try {
+                c.statements.clear();
+                c.connection().close();
+            } catch (SQLException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * A connection borrowed from the pool, closing it hands it back.
+     */
+    public static class PooledConnection implements AutoCloseable {
+        private final Connection conn;
+        private final BlockingQueue<PooledConnection> home;
+        private final StatementCache statements;
+
+        PooledConnection(Connection conn, BlockingQueue<PooledConnection> home,
+                StatementCache statements) {
+            this.conn = conn;
+            this.home = home;
+            this.statements = statements;
+        }
+
+        public Connection connection() {
+            return conn;
+        }
+
+        /**
+         * Returns the cached prepared statement for sql. The caller
+         * must close its result sets but not the statement itself.
+         */
+        public PreparedStatement prepare(String sql) throws SQLException {
+            return statements.get(sql);
+        }
+
+        public Statement createStatement() throws SQLException {
+            return conn.createStatement();
+        }
+
+        /**
+         * Starts a transaction, which lasts until commit() or until the
+         * connection is handed back, which rolls it back.
+         */
+        public void begin() throws SQLException {
+            conn.setAutoCommit(false);
+        }
+
+        public void commit() throws SQLException {
+            conn.commit();
+            conn.setAutoCommit(true);
+        }
+
+        /**
+         * Rolls back the transaction, for callers that go on using the
+         * connection afterwards.
+         */
+        public void rollback() throws SQLException {
+            conn.rollback();
+            conn.setAutoCommit(true);
+        }
+
+        /**
+         * Hands the connection back, rolling back anything left
+         * uncommitted so the next borrower starts clean.
+         */
+        @Override
+        public void close() {
+            try {
+                if (!conn.getAutoCommit()) {
+                    conn.rollback();
+                    conn.setAutoCommit(true);
+                }
+            } catch (SQLException e) {
+                e.printStackTrace();
+            }
+            home.add(this);
+        }
+    }
+
+    /**
+     * Checkout timings for one kind of connection.
+     */
+    public static class Stats {
+        private final LongAdder checkouts = new LongAdder();
+        private final LongAdder timeouts = new LongAdder();
+        private final LongAdder waitNanos = new LongAdder();
+        private final LongAccumulator maxWaitNanos = new LongAccumulator(Long::max, 0);
+
+        void record(long nanos, boolean success) {
+            if (success) {
+                checkouts.increment();
+            } else {
+                timeouts.increment();
+            }
+            waitNanos.add(nanos);
+            maxWaitNanos.accumulate(nanos);
+        }
+
+        public long checkouts() {
+            return checkouts.sum();
+        }
+
+        public long timeouts() {
+            return timeouts.sum();
+        }
+
+        public long waitNanos() {
+            return waitNanos.sum();
+        }
+
+        public long maxWaitNanos() {
+            return maxWaitNanos.get();
+        }
+    }
+}
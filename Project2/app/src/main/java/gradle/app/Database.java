@@ -5,9 +5,15 @@ import spark.Response;
 import java.net.URLEncoder;
 import java.io.UnsupportedEncodingException;
 import java.net.URLDecoder;
-import com.google.gson.*;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.sql.*;
 import java.util.*;
+import java.util.function.ToLongFunction;
 
 /**
  * Database is an interface to the college application database, it
@@ -15,49 +21,143 @@ import java.util.*;
  */
 public class Database {
 
+    private static final int RECIPE_CACHE_SIZE = 1024;
+
+    /**
+     * How many GET bodies the response cache keeps, and how many bytes
+     * of them.
+     */
+    private static final int RESPONSE_CACHE_SIZE = 256;
+    private static final long RESPONSE_CACHE_BYTES = 16L * 1024 * 1024;
+
+    /**
+     * How often pending deliveries are written to wareHouse, and how
+     * many may pile up before they are written at once.
+     */
+    private static final long DELIVERY_FLUSH_MILLIS = 20;
+    private static final int DELIVERY_FLUSH_THRESHOLD = 1000;
+
+    /**
+     * The largest number of writes the write pipeline commits at once.
+     */
+    private static final int WRITE_BATCH_SIZE = 256;
+
+    /**
+     * Recipes are given for 100 cookies and a pallet holds 5400.
+     */
+    private static final int RECIPES_PER_PALLET = 54;
+
     /**
-     * The database connection.
+     * The database connections.
      */
-    private Connection conn;
-    private Gson gson = new Gson();
+    private ConnectionPool pool;
+    private WritePipeline pipeline;
+    private DeliveryAggregator deliveries;
+    private Snapshots snapshots;
+    private RecipeCache recipeCache = new RecipeCache(RECIPE_CACHE_SIZE);
+    private PalletCounts palletCounts = new PalletCounts();
+    private BlockedRanges blockedRanges = new BlockedRanges();
+    private OrderAllocator orders = new OrderAllocator(blockedRanges);
+    private Inventory inventory = new Inventory();
+    private ResponseCache responses = new ResponseCache(RESPONSE_CACHE_SIZE, RESPONSE_CACHE_BYTES);
+    private final Metrics metrics = new Metrics();
+    private final Config config;
 
     /**
-     * Creates the database interface object. Connection to the
-     * database is performed later.
+     * Creates the database interface object with the default settings.
+     * Connection to the database is performed later.
      */
     public Database() {
-        conn = null;
+        this(Config.defaults());
+    }
+
+    /**
+     * Creates the database interface object, with the pool sizes,
+     * pragmas and schema of config. Connection to the database is
+     * performed later.
+     */
+    public Database(Config config) {
+        this.config = config;
+        pool = null;
+        exportMetrics();
     }
 
     /**
      * Opens a connection to the database, using the specified
      * filename (if we'd used a traditional DBMS, such as PostgreSQL
      * or MariaDB, we would have specified username and passwd
-     * instead).
+     * instead). A missing file is created from the schema, pending
+     * schema migrations are applied before returning, and from then on
+     * every write goes through the write pipeline.
      */
     public boolean openConnection(String filename) {
         try {
-            conn = DriverManager.getConnection("jdbc:sqlite:" + filename);
-        } catch (SQLException e) {
-            e.printStackTrace();
-            return false;
+            if (!Files.exists(Path.of(filename))) {
+                createDatabase(filename);
+            }
+            pool = ConnectionPool.open(filename, config.readers(), config.checkoutTimeoutMillis(),
+                config.statementCacheSize(), config.pragmas(), config.mmapSize(), config.cacheSize());
+            snapshots = new Snapshots(Path.of(config.snapshots()));
+            try (var c = pool.write()) {
+                SchemaMigrations.migrate(c.connection());
+                snapshots.createTemplate(c);
+                reloadState(c);
+            }
+            pipeline = new WritePipeline(pool, WRITE_BATCH_SIZE, metrics.query("writeBatch"));
+            deliveries = DeliveryAggregator.start(inventory, pipeline, DELIVERY_FLUSH_MILLIS,
+                DELIVERY_FLUSH_THRESHOLD);
         } catch (Exception e) {
             e.printStackTrace();
+            closeConnection();
+            pool = null;
             return false;
         }
         return true;
     }
 
     /**
-     * Closes the connection to the database.
+     * Creates the database filename from the schema script of config,
+     * or from the project1-schema.sql packaged with the server.
      */
-    public void closeConnection() {
-        try {
-            if (conn != null) {
-                conn.close();
+    private void createDatabase(String filename) throws SQLException, IOException {
+        String script;
+        if (config.schema() != null) {
+            script = Files.readString(Path.of(config.schema()));
+        } else {
+            try (var in = Database.class.getResourceAsStream("/project1-schema.sql")) {
+                if (in == null) {
+                    throw new IOException("No schema to create " + filename + " from");
+                }
+                script = new String(in.readAllBytes(), StandardCharsets.UTF_8);
             }
+        }
+
+        try (var conn = DriverManager.getConnection("jdbc:sqlite:" + filename)) {
+            SchemaMigrations.runScript(conn, script);
         } catch (SQLException e) {
-            e.printStackTrace();
+            Files.deleteIfExists(Path.of(filename));
+            throw e;
+        }
+    }
+
+    /**
+     * Closes the connections to the database.
+     */
+    public void closeConnection() {
+        if (deliveries != null) {
+            deliveries.close();
+            deliveries = null;
+        }
+        if (pipeline != null) {
+            pipeline.close();
+            pipeline = null;
+        }
+        if (pool != null) {
+            pool.close();
+        }
+        if (snapshots != null) {
+            snapshots.close();
+            snapshots = null;
         }
     }
 
@@ -67,7 +167,168 @@ public class Database {
      * @return true if the connection has been established
      */
     public boolean isConnected() {
-        return conn != null;
+        return pool != null;
+    }
+
+    /**
+     * The connection pool, for its checkout and statement cache
+     * statistics.
+     */
+    public ConnectionPool pool() {
+        return pool;
+    }
+
+    /**
+     * The latency histograms, for timing routes.
+     */
+    public Metrics metrics() {
+        return metrics;
+    }
+
+    /**
+     * The write pipeline, for its batch statistics.
+     */
+    public WritePipeline pipeline() {
+        return pipeline;
+    }
+
+    /**
+     * The delivery aggregator, for its flush statistics.
+     */
+    public DeliveryAggregator deliveries() {
+        return deliveries;
+    }
+
+    /**
+     * The recipe cache, for its hit rate.
+     */
+    public RecipeCache recipeCache() {
+        return recipeCache;
+    }
+
+    /**
+     * The pallet counts served by GET /cookies.
+     */
+    public PalletCounts palletCounts() {
+        return palletCounts;
+    }
+
+    /**
+     * The blocked date ranges of each cookie.
+     */
+    public BlockedRanges blockedRanges() {
+        return blockedRanges;
+    }
+
+    /**
+     * The allocator of pallets to orders.
+     */
+    public OrderAllocator orders() {
+        return orders;
+    }
+
+    /**
+     * The versions and bodies of the list endpoints.
+     */
+    public ResponseCache responses() {
+        return responses;
+    }
+
+    /**
+     * Exports the statistics of the pool, caches, write pipeline and
+     * delivery aggregator, read when /metrics is scraped.
+     */
+    private void exportMetrics() {
+        metrics.counter("krusty_pool_checkouts_total", "kind=\"read\"",
+            "Connections checked out of the pool.", () -> pool.readStats().checkouts());
+        metrics.counter("krusty_pool_checkouts_total", "kind=\"write\"",
+            "Connections checked out of the pool.", () -> pool.writeStats().checkouts());
+        metrics.counter("krusty_pool_timeouts_total", "kind=\"read\"",
+            "Checkouts that timed out waiting for a connection.", () -> pool.readStats().timeouts());
+        metrics.counter("krusty_pool_timeouts_total", "kind=\"write\"",
+            "Checkouts that timed out waiting for a connection.", () -> pool.writeStats().timeouts());
+        metrics.counter("krusty_pool_wait_seconds_total", "kind=\"read\"",
+            "Time spent waiting for a connection.", () -> pool.readStats().waitNanos() / 1e9);
+        metrics.counter("krusty_pool_wait_seconds_total", "kind=\"write\"",
+            "Time spent waiting for a connection.", () -> pool.writeStats().waitNanos() / 1e9);
+
+        metrics.counter("krusty_statement_cache_hits_total", "",
+            "Prepared statements found in the statement cache.", () -> pool.statementStats().hits());
+        metrics.counter("krusty_statement_cache_misses_total", "",
+            "Statements prepared on a statement cache miss.", () -> pool.statementStats().misses());
+        metrics.counter("krusty_statement_cache_evictions_total", "",
+            "Prepared statements evicted from the statement cache.", () -> pool.statementStats().evictions());
+
+        metrics.gauge("krusty_inventory_ingredients", "",
+            "Ingredients whose stock is kept in memory.", () -> inventory.size());
+
+        metrics.gauge("krusty_sqlite_pragma_profile", "profile=\"" + config.pragmas() + "\"",
+            "The PragmaProfile of every connection.", () -> 1);
+        metrics.counter("krusty_wal_checkpoints_total", "",
+            "Background WAL checkpoints run.", () -> checkpointer(WalCheckpointer::checkpoints));
+        metrics.counter("krusty_wal_checkpoints_busy_total", "",
+            "Background WAL checkpoints that found the checkpoint lock taken or gave up waiting.",
+            () -> checkpointer(WalCheckpointer::busy));
+        metrics.counter("krusty_wal_truncations_total", "",
+            "TRUNCATE checkpoints run because the WAL had grown too large.",
+            () -> checkpointer(WalCheckpointer::truncations));
+        metrics.counter("krusty_wal_frames_checkpointed_total", "",
+            "WAL frames copied into the database file.", () -> checkpointer(WalCheckpointer::framesCheckpointed));
+        metrics.gauge("krusty_wal_frames", "",
+            "Frames in the WAL at the last checkpoint.", () -> checkpointer(WalCheckpointer::walFrames));
+        metrics.counter("krusty_wal_checkpoint_seconds_total", "",
+            "Time spent in background WAL checkpoints.", () -> checkpointer(WalCheckpointer::nanos) / 1e9);
+
+        metrics.counter("krusty_recipe_cache_hits_total", "",
+            "Recipes served from the recipe cache.", () -> recipeCache.hits());
+        metrics.counter("krusty_recipe_cache_misses_total", "",
+            "Recipes loaded from the database.", () -> recipeCache.misses());
+        metrics.gauge("krusty_recipe_cache_size", "",
+            "Recipes in the recipe cache.", () -> recipeCache.size());
+
+        metrics.counter("krusty_response_cache_not_modified_total", "",
+            "GETs answered with 304 Not Modified.", () -> responses.notModified());
+        metrics.counter("krusty_response_cache_hits_total", "",
+            "GETs answered with a kept body.", () -> responses.hits());
+        metrics.counter("krusty_response_cache_misses_total", "",
+            "GETs answered from the database.", () -> responses.misses());
+        metrics.gauge("krusty_response_cache_size", "",
+            "Bodies in the response cache.", () -> responses.size());
+        metrics.gauge("krusty_response_cache_bytes", "",
+            "Bytes of bodies in the response cache.", () -> responses.bytes());
+
+        metrics.counter("krusty_write_batches_total", "",
+            "Transactions committed by the write pipeline.", () -> pipeline.batches());
+        metrics.counter("krusty_writes_total", "",
+            "Writes run by the write pipeline.", () -> pipeline.writes());
+        metrics.counter("krusty_write_failures_total", "",
+            "Writes that failed and were rolled back.", () -> pipeline.failures());
+        metrics.gauge("krusty_write_largest_batch", "",
+            "The most writes committed in one transaction.", () -> pipeline.largestBatch());
+        metrics.gauge("krusty_write_queued", "",
+            "Writes waiting for the writer thread.", () -> pipeline.queued());
+
+        metrics.gauge("krusty_orders_open_lines", "",
+            "Order lines waiting for pallets.", () -> orders.openLines());
+        metrics.gauge("krusty_orders_available_pallets", "",
+            "Pallets not allocated to an order.", () -> orders.availablePallets());
+        metrics.counter("krusty_orders_pallets_allocated_total", "",
+            "Pallets allocated to orders.", () -> orders.allocated());
+
+        metrics.counter("krusty_deliveries_total", "",
+            "Deliveries taken in by the delivery aggregator.", () -> deliveries.deliveries());
+        metrics.counter("krusty_delivery_flushes_total", "",
+            "Flushes of pending deliveries to wareHouse.", () -> deliveries.flushes());
+        metrics.counter("krusty_delivery_rows_written_total", "",
+            "wareHouse rows updated by delivery flushes.", () -> deliveries.rowsWritten());
+    }
+
+    /**
+     * stat of the background checkpointer, or 0 if there is none.
+     */
+    private double checkpointer(ToLongFunction<WalCheckpointer> stat) {
+        var checkpointer = pool == null ? null : pool.checkpointer();
+        return checkpointer == null ? 0 : stat.applyAsLong(checkpointer);
     }
 
     /* ================================== */
@@ -75,39 +336,119 @@ public class Database {
     /* ===============================*== */
 
     /**
-     *  Method to print JSON objects.
+     * /METRICS
+     * Get the latency histograms and statistics in the Prometheus
+     * text format.
+     *
+     * @param req
+     * @param res
+     * @return the metrics as text.
+     */
+    public String getMetrics(Request req, Response res) {
+        if (!isConnected()) {
+            res.status(503);
+            return "";
+        }
+        res.type("text/plain; version=0.0.4; charset=utf-8");
+        res.status(200);
+        return metrics.scrape();
+    }
+
+    /**
+     *  Method to print JSON objects, timed as the response of name.
+     */
+    private <T> String restResult(Response res, String name, T result, JsonCodec.Encoder<T> encoder) {
+        long start = System.nanoTime();
+        try {
+            JsonCodec.writeResult(res, result, encoder);
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            metrics.json(name).since(start);
+        }
+        return "";
+    }
+
+    /**
+     *  Method to print one page of JSON objects, with the cursor of the
+     *  next page if there may be one.
+     */
+    private <T> String restResult(Response res, String name, List<T> result, JsonCodec.Encoder<T> encoder,
+            String next) {
+        long start = System.nanoTime();
+        try {
+            JsonCodec.writeResult(res, result, encoder, next);
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            metrics.json(name).since(start);
+        }
+        return "";
+    }
+
+    /**
+     *  Method to print one page of JSON objects through the response
+     *  cache, which keeps the body under the version of miss.
      */
-    private String restResult(Object result) {
-        return gson.toJson(new ResultWrapper(result));
+    private <T> String restResult(Response res, ResponseCache.Miss miss, String name, List<T> result,
+            JsonCodec.Encoder<T> encoder, String next) {
+        long start = System.nanoTime();
+        try {
+            miss.write(res, JsonCodec.result(result, encoder, next));
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            metrics.json(name).since(start);
+        }
+        return "";
     }
 
     /**
-     * Class to wrap the data from JSON.
+     * Answers req from the response cache if it can, with 304 or a kept
+     * body.
+     *
+     * @return null if req has been answered, with 500 if the cached
+     *         body couldn't be written, otherwise the Miss to write the
+     *         response with.
      */
-    public class ResultWrapper {
-        private Object data;
+    private ResponseCache.Miss cached(Request req, Response res, ResponseCache.Resource resource) {
+        try {
+            return responses.answer(req, res, resource);
+        } catch (IOException e) {
+            e.printStackTrace();
+            res.status(500);
+            return null;
+        }
+    }
 
-        public ResultWrapper(Object data) {
-            this.data = data;
+    /**
+     *  Method to print the location of a created resource.
+     */
+    private String location(Response res, String location) {
+        try {
+            JsonCodec.writeLocation(res, location);
+        } catch (IOException e) {
+            e.printStackTrace();
         }
+        return "";
     }
 
     /**
-     * Checks parameters in App.
+     * Checks parameters in App, adding the value of paramName to
+     * params if it is given.
      *
      * @param req
      * @param paramName
-     * @param test
      * @param params
-     * @return string represenation of the paramater.
+     * @return whether the paramater is given.
      */
-    private String checkParam(Request req, String paramName, String test, List<String> params) {
+    private boolean checkParam(Request req, String paramName, List<String> params) {
         var param = deCoder(req.queryParams(paramName));
         if (param != null) {
             params.add(param);
-            return test;
+            return true;
         }
-        return "";
+        return false;
     }
 
     /**
@@ -145,45 +486,114 @@ public class Database {
 
      /**
       * /RESET
-      * Reseting database.
+      * Reseting database, by copying the empty template over it, or
+      * the snapshot named by the snapshot query parameter if given.
       *
       * @param req
       * @param res
       * @return / for successfull reset.
       */
     public String reset(Request req, Response res) {
-        var sql1 = "PRAGMA foreign_keys=OFF";
-        var sql2 = "DELETE FROM customers";
-        var sql3 = "DELETE FROM orders";
-        var sql4 = "DELETE FROM pallets";
-        var sql5 = "DELETE FROM products";
-        var sql6 = "DELETE FROM orderStatus";
-        var sql7 = "DELETE FROM wareHouse";
-        var sql8 = "DELETE FROM reciepts";
-        var sql9 = "PRAGMA foreign_keys=ON";
-
-        try (Statement s = conn.createStatement()) {
-            s.addBatch(sql1);
-            s.addBatch(sql2);
-            s.addBatch(sql3);
-            s.addBatch(sql4);
-            s.addBatch(sql5);
-            s.addBatch(sql6);
-            s.addBatch(sql7);
-            s.addBatch(sql8);
-            s.addBatch(sql9);
-
-            s.executeBatch();
+        var snapshot = req.queryParams("snapshot");
+        if (snapshot != null && !Snapshots.isValidName(snapshot)) {
+            res.status(400);
+            return "";
+        }
+        if (snapshot != null && !snapshots.exists(snapshot)) {
+            res.status(404);
+            return "No such snapshot";
+        }
+
+        long start = System.nanoTime();
+        try {
+            pipeline.executeAlone(tx -> {
+                var c = tx.connection();
+                if (snapshot == null) {
+                    snapshots.restoreTemplate(c);
+                } else {
+                    snapshots.restore(c, snapshot);
+                    SchemaMigrations.migrate(c.connection());
+                }
+                reloadState(c);
+                return null;
+            });
         } catch (SQLException e) {
             e.printStackTrace();
             res.status(500);
             return "";
+        } finally {
+            metrics.query("reset").since(start);
         }
 
         res.status(205);
         return "/";
     }
 
+     /**
+      * /SNAPSHOTS/name
+      * Save the database as the snapshot name, for POST /reset to
+      * restore.
+      *
+      * @param req
+      * @param res
+      * @param name
+      * @return location of the snapshot.
+      */
+    public String saveSnapshot(Request req, Response res, String name) {
+        if (!Snapshots.isValidName(name)) {
+            res.status(400);
+            return "";
+        }
+
+        long start = System.nanoTime();
+        try {
+            // Pending deliveries go into the snapshot too.
+            deliveries.flush();
+            pipeline.executeAlone(tx -> {
+                try {
+                    snapshots.save(tx.connection(), name);
+                } catch (IOException e) {
+                    throw new SQLException("Saving snapshot " + name + " failed", e);
+                }
+                return null;
+            });
+        } catch (SQLException e) {
+            e.printStackTrace();
+            res.status(500);
+            return "";
+        } finally {
+            metrics.query("saveSnapshot").since(start);
+        }
+
+        res.status(201);
+        return location(res, "/snapshots/" + name);
+    }
+
+    /**
+     * Loads what is kept in memory about the tables again, after they
+     * have been replaced on c, the write connection. Deliveries not yet
+     * written are dropped, since their rows are gone.
+     */
+    private void reloadState(ConnectionPool.PooledConnection c) throws SQLException {
+        if (deliveries != null) {
+            deliveries.reload(c);
+        } else {
+            inventory.load(c);
+        }
+        recipeCache.invalidate();
+        palletCounts.clear();
+        blockedRanges.load(c);
+        orders.load(c);
+        responses.changedAll();
+    }
+
+    static final String INSERT_CUSTOMER =
+        """
+        INSERT
+        INTO customers (customerName, customerAddress)
+        VALUES (?, ?)
+        """;
+
      /**
       * /CUSTOMERS
       * Add a new customers to the database.
@@ -194,29 +604,54 @@ public class Database {
       */
     public String addCustomers(Request req, Response res) {
         res.type("application/json");
-        Customer customer = gson.fromJson(req.body(), Customer.class);
-
-        var statement =
-            """
-            INSERT
-            INTO customers (customerName, customerAddress)
-            VALUES (?, ?)
-            """;
-
-        try (var ps = conn.prepareStatement(statement)) {
-            ps.setString(1, customer.name);
-            ps.setString(2, customer.address);
+        Customer customer;
+        try {
+            customer = JsonCodec.read(req.body(), Customer::fromJson);
+        } catch (IllegalArgumentException e) {
+            res.status(400);
+            return "";
+        }
 
-            ps.executeUpdate();
+        long start = System.nanoTime();
+        try {
+            pipeline.execute(tx -> {
+                var ps = tx.prepare(INSERT_CUSTOMER);
+                ps.setString(1, customer.name);
+                ps.setString(2, customer.address);
+
+                tx.afterCommit(() -> responses.changed(ResponseCache.Resource.CUSTOMERS));
+                return ps.executeUpdate();
+            });
         } catch (SQLException e) {
             e.printStackTrace();
             res.status(400);
             return "";
+        } finally {
+            metrics.query("addCustomers").since(start);
         }
 
         String name = enCoder(customer.name);
         res.status(201);
-        return "{ " + "\"" + "location" + "\"" + ": " + "\"" +  "/customers/" + name + "\"" + " }";
+        return location(res, "/customers/" + name);
+    }
+
+    static final String SELECT_CUSTOMERS =
+        """
+        SELECT *
+        FROM   customers
+        """;
+
+    /**
+     * SELECT_CUSTOMERS, or a page of it if paged, starting after the
+     * customer of a cursor if afterCursor.
+     */
+    static String selectCustomers(boolean paged, boolean afterCursor) {
+        if (!paged) {
+            return SELECT_CUSTOMERS;
+        }
+        return SELECT_CUSTOMERS
+            + (afterCursor ? "WHERE  customerName > ?\n" : "")
+            + "ORDER BY customerName\nLIMIT  ?";
     }
 
     /**
@@ -230,26 +665,52 @@ public class Database {
     public String getCustomers(Request req, Response res) {
         res.type("application/json");
         var found = new ArrayList<Customer>();
-        var query =
-            """
-            SELECT *
-            FROM   customers
-            """;
 
-        try (var ps = conn.prepareStatement(query)) {
-            var rs = ps.executeQuery();
+        Page page;
+        try {
+            page = Page.of(req, 1);
+        } catch (IllegalArgumentException e) {
+            res.status(400);
+            return "";
+        }
+        var query = selectCustomers(page != null, page != null && page.after() != null);
+
+        var miss = cached(req, res, ResponseCache.Resource.CUSTOMERS);
+        if (miss == null) {
+            return "";
+        }
 
-            while (rs.next()) {
-                found.add(Customer.fromRS(rs));
+        long start = System.nanoTime();
+        try (var c = pool.read()) {
+            var ps = c.prepare(query);
+            if (page != null) {
+                var index = 0;
+                if (page.after() != null) {
+                    ps.setString(++index, page.after()[0]);
+                }
+                ps.setInt(++index, page.limit());
+            }
+
+            try (var rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    found.add(Customer.fromRS(rs));
+                }
             }
         } catch (SQLException e) {
             e.printStackTrace();
             res.status(400);
             return "";
+        } finally {
+            metrics.query("getCustomers").since(start);
+        }
+
+        String next = null;
+        if (page != null && found.size() == page.limit()) {
+            next = Page.cursor(found.get(found.size() - 1).name);
         }
 
         res.status(200);
-        return restResult(found);
+        return restResult(res, miss, "getCustomers", found, Customer::toJson, next);
     }
 
     /**
@@ -266,8 +727,42 @@ public class Database {
         public static Customer fromRS(ResultSet rs) throws SQLException {
             return new Customer(rs.getString("customerName"), rs.getString("customerAddress"));
         }
+
+        public static Customer fromJson(JsonReader in) throws IOException {
+            String name = null, address = null;
+            in.beginObject();
+            while (in.hasNext()) {
+                switch (in.nextName()) {
+                    case "name":
+                        name = JsonCodec.nextString(in);
+                        break;
+                    case "address":
+                        address = JsonCodec.nextString(in);
+                        break;
+                    default:
+                        in.skipValue();
+                        break;
+                }
+            }
+            in.endObject();
+            return new Customer(name, address);
+        }
+
+        public void toJson(JsonWriter out) throws IOException {
+            out.beginObject();
+            out.name("name").value(name);
+            out.name("address").value(address);
+            out.endObject();
+        }
     }
 
+    static final String INSERT_INGREDIENT =
+        """
+        INSERT
+        INTO wareHouse (ingredientName, unit)
+        VALUES (?, ?)
+        """;
+
      /**
       * /INGREDIENTS
       * Add materials to wareHouse.
@@ -278,34 +773,44 @@ public class Database {
       */
     public String addMaterials(Request req, Response res) {
         res.type("application/json");
-        Ingredient ing = gson.fromJson(req.body(), Ingredient.class);
-
-        var statement =
-            """
-            INSERT
-            INTO wareHouse (ingredientName, unit)
-            VALUES (?, ?)
-            """;
-
-        try (var ps = conn.prepareStatement(statement)) {
-            ps.setString(1, ing.ingredient);
-            ps.setString(2, ing.unit);
+        Ingredient ing;
+        try {
+            ing = JsonCodec.read(req.body(), Ingredient::fromJson);
+        } catch (IllegalArgumentException e) {
+            res.status(400);
+            return "";
+        }
 
-            ps.executeUpdate();
+        long start = System.nanoTime();
+        try {
+            pipeline.execute(tx -> {
+                var ps = tx.prepare(INSERT_INGREDIENT);
+                ps.setString(1, ing.ingredient);
+                ps.setString(2, ing.unit);
+
+                tx.afterCommit(recipeCache::invalidate);
+                tx.afterCommit(() -> inventory.added(ing.ingredient, ing.unit));
+                tx.afterCommit(() -> responses.changed(ResponseCache.Resource.INGREDIENTS));
+                return ps.executeUpdate();
+            });
         } catch (SQLException e) {
             e.printStackTrace();
             res.status(400);
             return "";
+        } finally {
+            metrics.query("addMaterials").since(start);
         }
 
         String name = enCoder(ing.ingredient);
         res.status(201);
-        return "{ " + "\"" + "location" + "\"" + ": " + "\"" + "/ingredients/" + name + "\"" + " }";
+        return location(res, "/ingredients/" + name);
     }
 
     /**
      * /INGREDIENTS/DELIVERIES
-     * Add ingredient with quantity amount to wareHouse.
+     * Add ingredient with quantity amount to wareHouse. The delivery is
+     * written behind the response by the delivery aggregator, which
+     * also keeps the running total returned.
      *
      * @param req
      * @param res
@@ -314,67 +819,33 @@ public class Database {
      */
     public String addDelivery(Request req, Response res, String ingredient) {
         res.type("application/json");
-        Material dev = gson.fromJson(req.body(), Material.class);
-        dev.addIngredient(deCoder(ingredient));
-
-        var statement =
-            """
-            UPDATE wareHouse
-            SET    totalAmount = (totalAmount + ?),
-                   lastDelivered = ?,
-                   lastDeliveredAmount = ?
-            WHERE  ingredientName = ?
-            """;
-
-        try (var ps = conn.prepareStatement(statement)) {
-            ps.setInt(1, dev.quantity);
-            ps.setString(2, dev.deliveryTime);
-            ps.setInt(3, dev.quantity);
-            ps.setString(4, dev.ingredient);
-            ps.executeUpdate();
-        } catch (SQLException e) {
-            e.printStackTrace();
+        Material dev;
+        try {
+            dev = JsonCodec.read(req.body(), Material::fromJson);
+        } catch (IllegalArgumentException e) {
             res.status(400);
             return "";
         }
+        dev.addIngredient(deCoder(ingredient));
 
-        dev.quantity = getTotalAmount(dev);
-        res.status(201);
-        return restResult(dev);
-    }
-
-    /**
-     * Finds the total amount of a material in wareHouse.
-     *
-     * @param dev
-     * @return int value of totalAmount.
-     */
-    private int getTotalAmount(Material dev) {
-        var found = new ArrayList<Integer>();
-        var query = """
-                SELECT totalAmount
-                FROM   wareHouse
-                WHERE  ingredientName = ?
-                """;
-
-        try (var ps = conn.prepareStatement(query)) {
-            ps.setString(1, dev.ingredient);
-            var rs = ps.executeQuery();
-
-            while (rs.next()) {
-                found.add(rs.getInt(1));
-            }
+        long start = System.nanoTime();
+        long total = deliveries.add(dev.ingredient, dev.quantity, dev.deliveryTime);
+        metrics.query("addDelivery").since(start);
 
-            return found.get(0);
-        } catch (SQLException e) {
-            e.printStackTrace();
-            return 0;
+        if (total < 0) {
+            res.status(404);
+            return "No such ingredient";
         }
+
+        responses.changed(ResponseCache.Resource.INGREDIENTS);
+        dev.quantity = (int) total;
+        res.status(201);
+        return restResult(res, "addDelivery", dev, Material::toJson);
     }
 
     /**
      * /INGREDIENTS.
-     * Get materials in wareHouse.
+     * Get materials in wareHouse, from the inventory kept in memory.
      *
      * @param req
      * @param res
@@ -382,27 +853,35 @@ public class Database {
      */
     public String getMaterials(Request req, Response res) {
         res.type("application/json");
-        var found = new ArrayList<Material>();
-        var query =
-            """
-            SELECT ingredientName, totalAmount, unit
-            FROM   wareHouse
-            """;
-
-        try (var ps = conn.prepareStatement(query)) {
-            var rs = ps.executeQuery();
-
-            while (rs.next()) {
-                found.add(Material.fromRS(rs));
-            }
-        } catch (SQLException e) {
-            e.printStackTrace();
+        Page page;
+        try {
+            page = Page.of(req, 1);
+        } catch (IllegalArgumentException e) {
             res.status(400);
             return "";
         }
 
+        var miss = cached(req, res, ResponseCache.Resource.INGREDIENTS);
+        if (miss == null) {
+            return "";
+        }
+
+        long start = System.nanoTime();
+        List<Material> found;
+        if (page == null) {
+            found = inventory.materials(null, Integer.MAX_VALUE);
+        } else {
+            found = inventory.materials(page.after() == null ? null : page.after()[0], page.limit());
+        }
+        metrics.query("getMaterials").since(start);
+
+        String next = null;
+        if (page != null && found.size() == page.limit()) {
+            next = Page.cursor(found.get(found.size() - 1).ingredient);
+        }
+
         res.status(200);
-        return restResult(found);
+        return restResult(res, miss, "getMaterials", found, Material::toJson, next);
     }
 
     /**
@@ -440,6 +919,39 @@ public class Database {
             return new Material(rs.getString("ingredientName"), rs.getInt("totalAmount"),
                 rs.getString("unit"));
         }
+
+        /**
+         * Reads a delivery, the body of POST /ingredients/:ingredient/deliveries.
+         */
+        public static Material fromJson(JsonReader in) throws IOException {
+            String deliveryTime = null;
+            int quantity = 0;
+            in.beginObject();
+            while (in.hasNext()) {
+                switch (in.nextName()) {
+                    case "deliveryTime":
+                        deliveryTime = JsonCodec.nextString(in);
+                        break;
+                    case "quantity":
+                        quantity = in.nextInt();
+                        break;
+                    default:
+                        in.skipValue();
+                        break;
+                }
+            }
+            in.endObject();
+            return new Material(deliveryTime, quantity);
+        }
+
+        public void toJson(JsonWriter out) throws IOException {
+            out.beginObject();
+            out.name("ingredient").value(ingredient);
+            out.name("quantity").value(quantity);
+            out.name("unit").value(unit);
+            out.name("deliveryTime").value(deliveryTime);
+            out.endObject();
+        }
     }
 
     /**
@@ -456,121 +968,170 @@ public class Database {
         public static Ingredient fromRS(ResultSet rs) throws SQLException {
             return new Ingredient(rs.getString("ingredientName"), rs.getString("unit"));
         }
+
+        public static Ingredient fromJson(JsonReader in) throws IOException {
+            String ingredient = null, unit = null;
+            in.beginObject();
+            while (in.hasNext()) {
+                switch (in.nextName()) {
+                    case "ingredient":
+                        ingredient = JsonCodec.nextString(in);
+                        break;
+                    case "unit":
+                        unit = JsonCodec.nextString(in);
+                        break;
+                    default:
+                        in.skipValue();
+                        break;
+                }
+            }
+            in.endObject();
+            return new Ingredient(ingredient, unit);
+        }
     }
 
+    static final String INSERT_PRODUCT =
+        """
+        INSERT
+        INTO products (productName)
+        VALUES (?)
+        """;
+
+    static final String INSERT_RECIPE_LINE =
+        """
+        INSERT
+        INTO reciepts (productName, ingredientName, ingredientAmount)
+        VALUES (?, ?, ?)
+        """;
+
     /**
      * /COOKIES
-     * Add cookie to database.
+     * Add cookie to database. The cookie and all lines of its recipe
+     * are inserted in one write, the recipe as one batch, so either
+     * all of it is added or none of it.
      *
      * @param req
      * @param res
      * @return Cookie as JSON object.
      */
     public String addCookie(Request req, Response res) {
-        var recipes = splitBody(req.body());
-
-        var statement =
-            """
-            INSERT
-            INTO products (productName)
-            VALUES (?)
-            """;
-
-        try (var ps = conn.prepareStatement(statement)) {
-            ps.setString(1, recipes.get(0).name);
-            ps.executeUpdate();
+        List<Recipe> recipes;
+        try {
+            recipes = splitBody(req.body());
+        } catch (IllegalArgumentException e) {
+            res.status(400);
+            return "";
+        }
 
-            for (Recipe recipe : recipes) {
-                addRecipes(req, res, recipe);
-            }
+        long start = System.nanoTime();
+        try {
+            pipeline.execute(tx -> {
+                var ps = tx.prepare(INSERT_PRODUCT);
+                ps.setString(1, recipes.get(0).name);
+                ps.executeUpdate();
+
+                ps = tx.prepare(INSERT_RECIPE_LINE);
+                for (Recipe recipe : recipes) {
+                    ps.setString(1, recipe.name);
+                    ps.setString(2, recipe.ingredient);
+                    ps.setInt(3, recipe.amount);
+                    ps.addBatch();
+                }
+                ps.executeBatch();
+
+                var cookie = recipes.get(0).name;
+                tx.afterCommit(recipeCache::invalidate);
+                tx.afterCommit(() -> palletCounts.added(cookie));
+                tx.afterCommit(() -> responses.changed(ResponseCache.Resource.COOKIES));
+                return null;
+            });
         } catch (SQLException e) {
             e.printStackTrace();
             res.status(400);
             return "";
+        } finally {
+            metrics.query("addCookie").since(start);
         }
 
         String name = enCoder(recipes.get(0).name);
         res.status(201);
-        return "{ " + "\"" + "location" + "\"" + ": " + "\"" + "/cookies/" + name + "\"" + " }";
+        return location(res, "/cookies/" + name);
     }
 
-    private ArrayList<Recipe> splitBody(String body) {
-        var found = new ArrayList<Recipe>();
-
-        // Split to find the startindex of the cookieName.
-        String[] recipes1 = body.split("\\[");
-        int index = 0;
-        while (recipes1[0].charAt(index) != ':') {
-            index++;
-        }
+    /**
+     * Parses the body of POST /cookies into one Recipe per ingredient.
+     * Package-private for the benchmarks.
+     *
+     * @throws IllegalArgumentException if body is not a cookie with a recipe.
+     */
+    List<Recipe> splitBody(String body) {
+        return JsonCodec.read(body, Recipe::listFromJson);
+    }
 
-        // Append the cookieName.
-        index = index + 2;
+    public static class Recipe {
+        private String name, ingredient;
+        private int amount;
 
-        StringBuilder sb = new StringBuilder();
-        while (recipes1[0].charAt(index) != ',') {
-            sb.append(recipes1[0].charAt(index));
-            index++;
+        public Recipe (String ingredient, int amount) {
+            this.ingredient = ingredient;
+            this.amount = amount;
         }
-        sb.deleteCharAt(0);
-        sb.deleteCharAt(sb.length() - 1);
-        String cookie = sb.toString();
 
-        // Split to find every recipe.
-        String[] recipes2 = recipes1[1].split("},");
-
-        for (String recipe : recipes2) {
-            sb.delete(0, sb.length());
-            sb.append(recipe);
-
-            if (recipe.charAt(recipe.length() - 1) == '}') {
-                String[] obj = sb.toString().split("\\]");
-                found.add(gson.fromJson(obj[0], Recipe.class));
-            } else {
-                sb.append("}");
-                found.add(gson.fromJson(sb.toString(), Recipe.class));
-            }
-
-            found.get(found.size() - 1).addName(cookie);
+        public void addName(String name) {
+            this.name = name;
         }
 
-        return found;
-    }
-
-    private String addRecipes (Request req, Response res, Recipe recipe) {
-        var statement =
-            """
-            INSERT
-            INTO reciepts (productName, ingredientName, ingredientAmount)
-            VALUES (?, ?, ?)
-            """;
-
-        try (var ps = conn.prepareStatement(statement)) {
-            ps.setString(1, recipe.name);
-            ps.setString(2, recipe.ingredient);
-            ps.setInt(3, recipe.amount);
-            ps.executeUpdate();
-
-        } catch (SQLException e) {
-            e.printStackTrace();
-            res.status(400);
-            return "";
+        public static Recipe fromJson(JsonReader in) throws IOException {
+            String ingredient = null;
+            int amount = 0;
+            in.beginObject();
+            while (in.hasNext()) {
+                switch (in.nextName()) {
+                    case "ingredient":
+                        ingredient = JsonCodec.nextString(in);
+                        break;
+                    case "amount":
+                        amount = in.nextInt();
+                        break;
+                    default:
+                        in.skipValue();
+                        break;
+                }
+            }
+            in.endObject();
+            return new Recipe(ingredient, amount);
         }
 
-        return "OK";
-    }
-
-    public static class Recipe {
-        private String name, ingredient;
-        private int amount;
-
-        public Recipe (String ingredient, int amount) {
-            this.ingredient = ingredient;
-            this.amount = amount;
-        }
+        /**
+         * Reads a cookie, {"name": ..., "recipe": [...]}, as the list of
+         * its recipe lines.
+         */
+        public static List<Recipe> listFromJson(JsonReader in) throws IOException {
+            String name = null;
+            List<Recipe> recipes = List.of();
+            in.beginObject();
+            while (in.hasNext()) {
+                switch (in.nextName()) {
+                    case "name":
+                        name = JsonCodec.nextString(in);
+                        break;
+                    case "recipe":
+                        recipes = JsonCodec.readList(in, Recipe::fromJson);
+                        break;
+                    default:
+                        in.skipValue();
+                        break;
+                }
+            }
+            in.endObject();
 
-        public void addName(String name) {
-            this.name = name;
+            if (name == null || recipes.isEmpty()) {
+                throw new IllegalStateException("A cookie needs a name and a recipe");
+            }
+            for (var recipe : recipes) {
+                recipe.addName(name);
+            }
+            return recipes;
         }
     }
 
@@ -583,34 +1144,60 @@ public class Database {
      * @return JSON Objects of all products.
      */
     public String getCookies(Request req, Response res) {
-        var found = new ArrayList<Product>();
-        var query =
-            """
-            WITH palletCount AS (
-                SELECT productName, count(*) AS palets
-                FROM   pallets
-                GROUP BY productName
-                )
-            SELECT          productName, palets
-            FROM            products
-            LEFT OUTER JOIN palletCount
-            USING           (productName)
-            """;
-
-        try (var ps = conn.prepareStatement(query)) {
-            var rs = ps.executeQuery();
+        var miss = cached(req, res, ResponseCache.Resource.COOKIES);
+        if (miss == null) {
+            return "";
+        }
 
-            while (rs.next()) {
-                found.add(Product.fromRS(rs));
+        var found = palletCounts.get();
+        if (found == null) {
+            found = loadPalletCounts();
+            if (found == null) {
+                res.status(400);
+                return "";
             }
+        }
+
+        res.status(200);
+        return restResult(res, miss, "getCookies", found, Product::toJson, null);
+    }
+
+    static final String SELECT_PALLET_COUNTS =
+        """
+        SELECT productName, pallets
+        FROM   palletCounts
+        """;
+
+    /**
+     * Reads palletCounts into the in-memory pallet counts. It is read
+     * through the write pipeline, so no pallets can be baked between
+     * reading it and loading the counts.
+     *
+     * @return the products and their pallet counts, or null on error.
+     */
+    private List<Product> loadPalletCounts() {
+        long start = System.nanoTime();
+        try {
+            pipeline.execute(tx -> {
+                var found = new LinkedHashMap<String, Long>();
+                try (var rs = tx.prepare(SELECT_PALLET_COUNTS).executeQuery()) {
+                    while (rs.next()) {
+                        found.put(rs.getString("productName"), rs.getLong("pallets"));
+                    }
+                }
+                tx.afterCommit(() -> palletCounts.load(found));
+                return null;
+            });
         } catch (SQLException e) {
             e.printStackTrace();
-            res.status(400);
-            return "";
+            return null;
+        } finally {
+            metrics.query("loadPalletCounts").since(start);
         }
 
-        res.status(200);
-        return restResult(found);
+        // Only null if a reset came right after, which left no products.
+        var found = palletCounts.get();
+        return found != null ? found : List.of();
     }
 
     /**
@@ -625,117 +1212,193 @@ public class Database {
     public String getCookie(Request req, Response res, String product) {
         product = deCoder(product);
 
-        var found = new ArrayList<Reciepts>();
-        var query =
-            """
-            SELECT productName, ingredientName, ingredientAmount, unit
-            FROM   reciepts
-            JOIN   wareHouse
-            USING  (ingredientName)
-            WHERE  productName = ?
-            """;
-
-        try (var ps = conn.prepareStatement(query)) {
-            ps.setString(1, product);
-            var rs = ps.executeQuery();
-
-            while (rs.next()) {
-                found.add(Reciepts.fromRS(rs));
+        var found = recipeCache.get(product);
+        if (found == null) {
+            found = loadRecipe(product);
+            if (found == null) {
+                res.status(400);
+                return "";
             }
+        }
+
+        if (found.size() < 1) {
+            res.status(404);
+            return "No such cookie";
+        }
+
+        res.status(200);
+        return restResult(res, "getCookie", found, Reciepts::toJson, null);
+    }
+
+    static final String SELECT_RECIPE =
+        """
+        SELECT productName, ingredientName, ingredientAmount, unit
+        FROM   reciepts
+        JOIN   wareHouse
+        USING  (ingredientName)
+        WHERE  productName = ?
+        """;
 
-            if (found.size() < 1) {
-                res.status(404);
-                return "No such cookie";
+    /**
+     * Reads the recipe of product from the database into the recipe
+     * cache.
+     *
+     * @param product
+     * @return the recipe, empty if there is no such cookie, or null on error.
+     */
+    private List<Reciepts> loadRecipe(String product) {
+        var found = new ArrayList<Reciepts>();
+
+        long generation = recipeCache.generation();
+        long start = System.nanoTime();
+        try (var c = pool.read()) {
+            var ps = c.prepare(SELECT_RECIPE);
+            ps.setString(1, product);
+            try (var rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    found.add(Reciepts.fromRS(rs));
+                }
             }
         } catch (SQLException e) {
             e.printStackTrace();
-            res.status(400);
-            return "";
+            return null;
+        } finally {
+            metrics.query("loadRecipe").since(start);
         }
 
-        res.status(200);
-        return restResult(found);
+        recipeCache.put(product, found, generation);
+        return found;
     }
 
     /**
      * /BLOCK/cookie
-     * Block pallets with cookie cookie.
+     * Block pallets with cookie cookie, produced between the after and
+     * before query parameters if given.
      *
      * @param req
      * @param res
      * @param cookie
-     * @return Empty string.
+     * @return JSON object with the blocked ranges of cookie and the
+     *         number of pallets changed.
      */
     public String block(Request req, Response res, String cookie) {
-        cookie = deCoder(cookie);
-        var query =
-            """
-            UPDATE pallets
-            SET    blocked = 1
-            WHERE  productName = ? AND
-                   1 = 1
-            """;
-
-        var params = new ArrayList<String>();
-        query+= checkParam(req, "after", " AND productionDate > ?", params);
-        query+= checkParam(req, "before", " AND productionDate < ?", params);
-
-        try (var ps = conn.prepareStatement(query)) {
-            var index = 0;
-            for (var param : params) {
-                ps.setString(++index, param);
-            }
-
-            ps.setString(1, cookie);
-            ps.executeUpdate();
-        } catch (SQLException e) {
-            e.printStackTrace();
-            res.status(400);
-            return "ERROR";
-        }
-
-        res.status(205);
-        return "";
+        return setBlocked(req, res, deCoder(cookie), true, "block");
     }
 
     /**
      * /UNBLOCK/cookie
-     * Unblock pallets with cookie cookie.
+     * Unblock pallets with cookie cookie, produced between the after
+     * and before query parameters if given.
      *
      * @param req
      * @param res
      * @param cookie
-     * @return empty string.
+     * @return JSON object with the blocked ranges of cookie and the
+     *         number of pallets changed.
      */
     public String unblock(Request req, Response res, String cookie) {
-        cookie = deCoder(cookie);
-        var query =
-            """
-            UPDATE pallets
-            SET    blocked = true
-            WHERE  productName = ? AND
-                   1 = 1
-            """;
+        return setBlocked(req, res, deCoder(cookie), false, "unblock");
+    }
 
-        var params = new ArrayList<String>();
-        query+= checkParam(req, "after", " AND productionDate > ?", params);
-        query+= checkParam(req, "before", " AND productionDate < ?", params);
+    static final String SELECT_PRODUCT =
+        """
+        SELECT 1
+        FROM   products
+        WHERE  productName = ?
+        """;
 
-        try (var ps = conn.prepareStatement(query)) {
-            var index = 0;
-            for (var param : params) {
-                ps.setString(++index, param);
-            }
+    /**
+     * Adds the date range of req to the blocked ranges of cookie, or
+     * cuts it out of them, along with the pallets in it that were
+     * blocked one by one. Only the ranges of cookie are rewritten, the
+     * pallets themselves are left alone. A block covers the pallets
+     * baked so far, so pallets baked later in the range aren't
+     * blocked.
+     *
+     * @param req
+     * @param res
+     * @param cookie
+     * @param blocked
+     * @param name the endpoint, for metrics.
+     * @return JSON object with the blocked ranges of cookie and the
+     *         number of pallets changed.
+     */
+    private String setBlocked(Request req, Response res, String cookie, boolean blocked, String name) {
+        BlockedRanges.Range range;
+        try {
+            range = BlockedRanges.Range.between(deCoder(req.queryParams("after")),
+                deCoder(req.queryParams("before")));
+        } catch (IllegalArgumentException e) {
+            res.status(400);
+            return "";
+        }
 
-            ps.setString(1, cookie);
-            ps.executeQuery();
+        BlockedRanges.Change change;
+        long start = System.nanoTime();
+        try {
+            change = pipeline.execute(tx -> {
+                var ps = tx.prepare(SELECT_PRODUCT);
+                ps.setString(1, cookie);
+                try (var rs = ps.executeQuery()) {
+                    if (!rs.next()) {
+                        return null;
+                    }
+                }
+
+                if (range == null) {
+                    return new BlockedRanges.Change(blockedRanges.read(tx, cookie), 0);
+                }
+                BlockedRanges.Change changed;
+                if (blocked) {
+                    changed = blockedRanges.block(tx, cookie, range);
+                } else {
+                    changed = blockedRanges.unblock(tx, cookie, range);
+                    orders.unblocked(tx, cookie);
+                }
+                tx.afterCommit(() -> responses.changed(ResponseCache.Resource.PALLETS));
+                return changed;
+            });
         } catch (SQLException e) {
             e.printStackTrace();
             res.status(400);
+            return "";
+        } finally {
+            metrics.query(name).since(start);
         }
 
-        res.status(205);
-        return "";
+        if (change == null) {
+            res.status(404);
+            return "No such cookie";
+        }
+
+        res.status(200);
+        return restResult(res, name, new Blocking(cookie, change.ranges(), change.pallets()),
+            Blocking::toJson);
+    }
+
+    /**
+     * Class for the answer to block and unblock: the blocked ranges of
+     * the cookie, and how many pallets were blocked or unblocked.
+     */
+    public static class Blocking {
+        private final String cookie;
+        private final List<BlockedRanges.Range> blocked;
+        private final long pallets;
+
+        public Blocking(String cookie, List<BlockedRanges.Range> blocked, long pallets) {
+            this.cookie = cookie;
+            this.blocked = blocked;
+            this.pallets = pallets;
+        }
+
+        public void toJson(JsonWriter out) throws IOException {
+            out.beginObject();
+            out.name("cookie").value(cookie);
+            out.name("blocked");
+            JsonCodec.writeArray(out, blocked, BlockedRanges.Range::toJson);
+            out.name("pallets").value(pallets);
+            out.endObject();
+        }
     }
 
     /**
@@ -750,8 +1413,11 @@ public class Database {
             this.pallets = pallets;
         }
 
-        public static Product fromRS(ResultSet rs) throws SQLException {
-            return new Product(rs.getString("productName"), rs.getInt("palets"));
+        public void toJson(JsonWriter out) throws IOException {
+            out.beginObject();
+            out.name("name").value(name);
+            out.name("pallets").value(pallets);
+            out.endObject();
         }
     }
 
@@ -773,6 +1439,14 @@ public class Database {
             return new Reciepts(rs.getString("ingredientName"), rs.getInt("ingredientAmount"),
                 rs.getString("unit"));
         }
+
+        public void toJson(JsonWriter out) throws IOException {
+            out.beginObject();
+            out.name("ingredient").value(ingredient);
+            out.name("amount").value(amount);
+            out.name("unit").value(unit);
+            out.endObject();
+        }
     }
 
     /**
@@ -784,97 +1458,365 @@ public class Database {
      * @return location of palletId.
      */
     public String newPallet(Request req, Response res) {
-        Pallet pallet = gson.fromJson(req.body(), Pallet.class);
-        var statement =
-            """
-            INSERT
-            INTO    pallets(productName, productionDate)
-            VALUES  (?, ?)
-            """;
-
-        try (var ps = conn.prepareStatement(statement)) {
-            ps.setString(1, pallet.cookie);
-            Calendar calendar = Calendar.getInstance();
-            var now = calendar.getTime();
-            ps.setDate(2, new java.sql.Date(now.getTime()));
-            ps.executeUpdate();
+        Pallet pallet;
+        try {
+            pallet = JsonCodec.read(req.body(), Pallet::fromJson);
+        } catch (IllegalArgumentException e) {
+            res.status(400);
+            return "";
+        }
+
+        List<String> ids;
+        long start = System.nanoTime();
+        try {
+            ids = pipeline.execute(tx -> {
+                var baked = producePallets(tx, pallet.cookie, 1);
+                if (baked != null) {
+                    tx.afterCommit(this::palletsBaked);
+                }
+                return baked;
+            });
         } catch (SQLException e) {
             e.printStackTrace();
             res.status(422);
             return "";
+        } finally {
+            metrics.query("newPallet").since(start);
+        }
+
+        if (ids == null) {
+            res.status(422);
+            return "";
         }
+        pallet.id = ids.get(0);
 
-        pallet.id = getLatestPalletId();
         res.status(201);
-        return "{ " + "\"" + "location" + "\"" + ": " + "\"" + "/pallets/" + pallet.id + "\"" + " }";
+        return location(res, "/pallets/" + pallet.id);
     }
 
     /**
-     * Get the last added pallets palletId.
-     * @return last added palletId.
+     * /PALLETS/BATCH
+     * Post many pallets at once, as a list of cookies and counts. All
+     * pallets are baked in one write, with the ingredients of each
+     * cookie deducted once for all its pallets. If any cookie can't be
+     * baked, none are.
+     *
+     * @param req
+     * @param res
+     * @return palletIds of all new pallets as JSON objects.
      */
-    private String getLatestPalletId() {
-        var statement =
-            """
-            SELECT palletId
-            FROM   pallets
-            WHERE  rowid = last_insert_rowid()
-            """;
+    public String newPallets(Request req, Response res) {
+        res.type("application/json");
+        List<Production> batch;
+        try {
+            batch = JsonCodec.read(req.body(), in -> JsonCodec.readList(in, Production::fromJson));
+        } catch (IllegalArgumentException e) {
+            res.status(400);
+            return "";
+        }
 
-        try (var ps = conn.prepareStatement(statement)) {
-            var rs = ps.executeQuery();
-            if (rs.next()) {
-                var id = rs.getString("palletId");
-                return id;
+        var counts = new LinkedHashMap<String, Integer>();
+        if (batch.isEmpty()) {
+            res.status(400);
+            return "";
+        }
+        for (var production : batch) {
+            if (production.cookie == null || production.count < 1) {
+                res.status(400);
+                return "";
             }
+            counts.merge(production.cookie, production.count, Integer::sum);
+        }
+
+        List<String> ids;
+        long start = System.nanoTime();
+        try {
+            ids = pipeline.execute(tx -> {
+                var baked = new ArrayList<String>();
+                for (var entry : counts.entrySet()) {
+                    var pallets = producePallets(tx, entry.getKey(), entry.getValue());
+                    if (pallets == null) {
+                        tx.abort();
+                        return null;
+                    }
+                    baked.addAll(pallets);
+                }
+                tx.afterCommit(this::palletsBaked);
+                return baked;
+            });
         } catch (SQLException e) {
             e.printStackTrace();
+            res.status(422);
+            return "";
+        } finally {
+            metrics.query("newPallets").since(start);
         }
 
-        return "";
+        if (ids == null) {
+            res.status(422);
+            return "";
+        }
+
+        res.status(201);
+        return restResult(res, "newPallets", ids, (id, out) -> out.value(id), null);
+    }
+
+    /**
+     * Class for one entry of a batch of pallets, to translate from JSON.
+     */
+    public static class Production {
+        private String cookie;
+        private int count;
+
+        public Production(String cookie, int count) {
+            this.cookie = cookie;
+            this.count = count;
+        }
+
+        public static Production fromJson(JsonReader in) throws IOException {
+            String cookie = null;
+            int count = 0;
+            in.beginObject();
+            while (in.hasNext()) {
+                switch (in.nextName()) {
+                    case "cookie":
+                        cookie = JsonCodec.nextString(in);
+                        break;
+                    case "count":
+                        count = in.nextInt();
+                        break;
+                    default:
+                        in.skipValue();
+                        break;
+                }
+            }
+            in.endObject();
+            return new Production(cookie, count);
+        }
+    }
+
+    static final String SELECT_PALLET_RECIPE =
+        """
+        SELECT ingredientName, ingredientAmount
+        FROM   reciepts
+        WHERE  productName = ?
+        """;
+
+    static final String DEDUCT_INGREDIENTS =
+        """
+        UPDATE wareHouse
+        SET    totalAmount = totalAmount - ? * (
+                   SELECT ingredientAmount
+                   FROM   reciepts
+                   WHERE  productName = ? AND
+                          ingredientName = wareHouse.ingredientName)
+        WHERE  ingredientName IN (
+                   SELECT ingredientName
+                   FROM   reciepts
+                   WHERE  productName = ?)
+        """;
+
+    static final String INSERT_PALLET =
+        """
+        INSERT
+        INTO    pallets(palletId, productName, productionDate)
+        VALUES  (?, ?, ?)
+        """;
+
+    /**
+     * Bakes count pallets of cookie in tx. Reads the recipe, reserves
+     * its ingredients in the inventory, which takes them once tx has
+     * committed, deducts them all from wareHouse in one UPDATE and
+     * inserts the pallets with ids generated here, so no query is
+     * needed to find them.
+     *
+     * @param tx
+     * @param cookie
+     * @param count
+     * @return the new palletIds, or null if the cookie has no recipe or
+     *         stock is short, in which case no pallets have been written.
+     */
+    private List<String> producePallets(WritePipeline.Transaction tx, String cookie, int count)
+            throws SQLException {
+        long needed = (long) count * RECIPES_PER_PALLET;
+
+        var amounts = new HashMap<String, Long>();
+        var ps = tx.prepare(SELECT_PALLET_RECIPE);
+        ps.setString(1, cookie);
+        try (var rs = ps.executeQuery()) {
+            while (rs.next()) {
+                amounts.put(rs.getString("ingredientName"), rs.getLong("ingredientAmount") * needed);
+            }
+        }
+        if (!inventory.reserve(tx, amounts)) {
+            return null;
+        }
+
+        ps = tx.prepare(DEDUCT_INGREDIENTS);
+        ps.setLong(1, needed);
+        ps.setString(2, cookie);
+        ps.setString(3, cookie);
+        ps.executeUpdate();
+
+        // Each pallet gets the rowid after the largest, so the pallets
+        // are numbered on from the last one in the order inserted.
+        long firstNumber = BlockedRanges.lastPallet(tx) + 1;
+        var ids = new ArrayList<String>(count);
+        var today = java.time.LocalDate.now().toString();
+        ps = tx.prepare(INSERT_PALLET);
+        for (int i = 0; i < count; i++) {
+            var id = newPalletId();
+            ps.setString(1, id);
+            ps.setString(2, cookie);
+            ps.setString(3, today);
+            ps.addBatch();
+            ids.add(id);
+        }
+        ps.executeBatch();
+
+        orders.baked(tx, cookie, today, ids, firstNumber);
+        tx.afterCommit(() -> palletCounts.baked(cookie, count));
+        return ids;
+    }
+
+    /**
+     * Pallets have been baked, after the write has committed and the
+     * new stock and pallet counts have been applied: the pallets, the
+     * pallet counts of the cookies and the stock of the ingredients
+     * have all changed.
+     */
+    private void palletsBaked() {
+        responses.changed(ResponseCache.Resource.PALLETS, ResponseCache.Resource.COOKIES,
+            ResponseCache.Resource.INGREDIENTS);
+    }
+
+    /**
+     * A new palletId, in the same format as the column default.
+     */
+    private static String newPalletId() {
+        return UUID.randomUUID().toString().replace("-", "");
+    }
+
+    static final String SELECT_PALLETS =
+        """
+        SELECT palletId, productName, productionDate, rowid AS palletNumber
+        FROM   pallets
+        WHERE  1 = 1
+        """;
+
+    /**
+     * SELECT_PALLETS with the filters that are given, or a page of it
+     * if paged, starting after the pallet of a cursor if afterCursor.
+     * A cursor pallet without a productionDate is undated, and is
+     * followed by the other undated pallets after its palletId, then by
+     * every dated one, as NULL sorts first.
+     */
+    static String selectPallets(boolean cookie, boolean after, boolean before, boolean paged,
+            boolean afterCursor, boolean undated) {
+        var query = SELECT_PALLETS;
+        query += cookie ? " AND productName = ?" : "";
+        query += after ? " AND productionDate > ?" : "";
+        query += before ? " AND productionDate < ?" : "";
+        if (paged) {
+            if (afterCursor) {
+                query += undated ? " AND (productionDate IS NOT NULL OR palletId > ?)"
+                    : " AND (productionDate, palletId) > (?, ?)";
+            }
+            query += " ORDER BY productionDate, palletId LIMIT ?";
+        }
+        return query;
     }
 
     /**
      * /PALLETS
      * Get pallets from Pallets.
      *
+     * Pallets are written to the response one row at a time as they
+     * are read, so memory use doesn't grow with the number of pallets.
+     * Only a response small enough for the response cache is kept.
+     *
      * @param req
      * @param res
-     * @return Result as JSON objects.
+     * @return empty string, the JSON objects are streamed to res.
      */
     public String getPallets(Request req, Response res) {
+        var params = new ArrayList<String>();
+        boolean cookie = checkParam(req, "cookie", params);
+        boolean after = checkParam(req, "after", params);
+        boolean before = checkParam(req, "before", params);
 
-        var found = new ArrayList<Pallet>();
-        var query =
-            """
-            SELECT palletId, productName, productionDate, isBlocked
-            FROM   pallets
-            WHERE  1 = 1
-            """;
+        Page page;
+        try {
+            page = Page.of(req, 2);
+        } catch (IllegalArgumentException e) {
+            res.status(400);
+            return "";
+        }
+        boolean afterCursor = page != null && page.after() != null;
+        boolean undated = afterCursor && page.after()[0] == null;
+        if (afterCursor) {
+            params.addAll(Arrays.asList(page.after()).subList(undated ? 1 : 0, 2));
+        }
+        var query = selectPallets(cookie, after, before, page != null, afterCursor, undated);
 
-        var params = new ArrayList<String>();
-        query+= checkParam(req, "cookie", " AND productName = ?", params);
-        query+= checkParam(req, "after", " AND productionDate > ?", params);
-        query+= checkParam(req, "before", " AND productionDate < ?", params);
+        var miss = cached(req, res, ResponseCache.Resource.PALLETS);
+        if (miss == null) {
+            return "";
+        }
 
-        try (var ps = conn.prepareStatement(query)) {
+        long start = System.nanoTime();
+        try (var c = pool.read()) {
+            var ps = c.prepare(query);
             var index = 0;
             for (var param : params) {
                 ps.setString(++index, param);
             }
+            if (page != null) {
+                ps.setInt(++index, page.limit());
+            }
 
-            var rs = ps.executeQuery();
-            while (rs.next()) {
-                found.add(Pallet.fromRS(rs));
+            try (var rs = ps.executeQuery()) {
+                res.status(200);
+                miss.stream(res, out -> streamResult(out, rs, page));
             }
         } catch (SQLException e) {
             e.printStackTrace();
             res.status(400);
             return "";
+        } catch (IOException e) {
+            // The client went away, the response can't be fixed anymore.
+            e.printStackTrace();
+        } finally {
+            metrics.query("getPallets").since(start);
         }
 
-        res.status(200);
-        return restResult(found);
+        return "";
+    }
+
+    /**
+     * Writes the pallets of rs to json as they are read, in the same
+     * form as restResult.
+     */
+    private void streamResult(JsonWriter json, ResultSet rs, Page page) throws IOException {
+        json.beginObject();
+        json.name("data");
+        json.beginArray();
+        int count = 0;
+        Pallet last = null;
+        try {
+            while (rs.next()) {
+                last = Pallet.fromRS(rs, blockedRanges);
+                last.toJson(json);
+                count++;
+            }
+        } catch (SQLException e) {
+            throw new IOException(e);
+        }
+        json.endArray();
+        if (page != null && count == page.limit()) {
+            json.name("next").value(Page.cursor(last.productionDate, last.id));
+        }
+        json.endObject();
     }
 
     /**
@@ -895,9 +1837,341 @@ public class Database {
             this.cookie = cookie;
         }
 
-        public static Pallet fromRS(ResultSet rs) throws SQLException {
-            return new Pallet(rs.getString("palletId"), rs.getString("productName"),
-                rs.getString("productionDate"), rs.getBoolean("isBlocked"));
+        /**
+         * Reads a pallet from rs, blocked if a blocked range of its
+         * cookie covers it, or if it was blocked by itself.
+         */
+        public static Pallet fromRS(ResultSet rs, BlockedRanges blockedRanges) throws SQLException {
+            var id = rs.getString("palletId");
+            var cookie = rs.getString("productName");
+            var productionDate = rs.getString("productionDate");
+            return new Pallet(id, cookie, productionDate,
+                blockedRanges.isBlocked(id, cookie, productionDate, rs.getLong("palletNumber")));
+        }
+
+        /**
+         * Reads the cookie of a new pallet, the body of POST /pallets.
+         */
+        public static Pallet fromJson(JsonReader in) throws IOException {
+            String cookie = null;
+            in.beginObject();
+            while (in.hasNext()) {
+                if (in.nextName().equals("cookie")) {
+                    cookie = JsonCodec.nextString(in);
+                } else {
+                    in.skipValue();
+                }
+            }
+            in.endObject();
+            return new Pallet(cookie);
+        }
+
+        public void toJson(JsonWriter out) throws IOException {
+            out.beginObject();
+            out.name("id").value(id);
+            out.name("cookie").value(cookie);
+            out.name("productionDate").value(productionDate);
+            out.name("blocked").value(blocked);
+            out.endObject();
+        }
+    }
+
+    static final String INSERT_ORDER =
+        """
+        INSERT
+        INTO orders (orderId, customerName, deliveryTime)
+        VALUES (?, ?, ?)
+        """;
+
+    static final String INSERT_ORDER_LINE =
+        """
+        INSERT
+        INTO orderStatus (orderId, productName, orderAmount)
+        VALUES (?, ?, ?)
+        """;
+
+     /**
+      * /ORDERS
+      * Place an order of pallets of cookies for a customer. What
+      * pallets there are are allocated to it at once, and the rest as
+      * they are baked or unblocked.
+      *
+      * @param req
+      * @param res
+      * @return location of the order.
+      */
+    public String addOrder(Request req, Response res) {
+        res.type("application/json");
+        Order order;
+        try {
+            order = JsonCodec.read(req.body(), Order::fromJson);
+        } catch (IllegalArgumentException e) {
+            res.status(400);
+            return "";
+        }
+
+        var counts = new LinkedHashMap<String, Integer>();
+        if (order.customer == null || order.lines.isEmpty()) {
+            res.status(400);
+            return "";
+        }
+        for (var line : order.lines) {
+            if (line.cookie == null || line.count < 1) {
+                res.status(400);
+                return "";
+            }
+            counts.merge(line.cookie, line.count, Integer::sum);
+        }
+
+        int id;
+        long start = System.nanoTime();
+        try {
+            id = pipeline.execute(tx -> {
+                var orderId = orders.nextOrderId();
+                var ps = tx.prepare(INSERT_ORDER);
+                ps.setInt(1, orderId);
+                ps.setString(2, order.customer);
+                ps.setString(3, order.deliveryTime);
+                ps.executeUpdate();
+
+                ps = tx.prepare(INSERT_ORDER_LINE);
+                for (var entry : counts.entrySet()) {
+                    ps.setInt(1, orderId);
+                    ps.setString(2, entry.getKey());
+                    ps.setInt(3, entry.getValue());
+                    ps.addBatch();
+                }
+                ps.executeBatch();
+
+                orders.placed(tx, orderId, counts);
+                return orderId;
+            });
+        } catch (SQLException e) {
+            e.printStackTrace();
+            res.status(400);
+            return "";
+        } finally {
+            metrics.query("addOrder").since(start);
+        }
+
+        res.status(201);
+        return location(res, "/orders/" + id);
+    }
+
+    static final String SELECT_ORDER =
+        """
+        SELECT orderId, customerName, deliveryTime
+        FROM   orders
+        WHERE  orderId = ?
+        """;
+
+    static final String SELECT_ORDER_LINES =
+        """
+        SELECT productName, orderAmount
+        FROM   orderStatus
+        WHERE  orderId = ?
+        """;
+
+    static final String SELECT_ORDER_PALLETS =
+        """
+        SELECT palletId, productName, productionDate, rowid AS palletNumber
+        FROM   pallets
+        WHERE  orderId = ?
+        ORDER BY productionDate, palletId
+        """;
+
+    /**
+     * /ORDERS/id
+     * Get an order, with how many pallets of each cookie have been
+     * allocated to it and which.
+     *
+     * @param req
+     * @param res
+     * @param id
+     * @return JSON object of the order.
+     */
+    public String getOrder(Request req, Response res, String id) {
+        int orderId;
+        try {
+            orderId = Integer.parseInt(id);
+        } catch (NumberFormatException e) {
+            res.status(404);
+            return "No such order";
+        }
+
+        Order found = null;
+        long start = System.nanoTime();
+        try (var c = pool.read()) {
+            var ps = c.prepare(SELECT_ORDER);
+            ps.setInt(1, orderId);
+            try (var rs = ps.executeQuery()) {
+                if (rs.next()) {
+                    found = Order.fromRS(rs);
+                }
+            }
+
+            if (found != null) {
+                ps = c.prepare(SELECT_ORDER_LINES);
+                ps.setInt(1, orderId);
+                try (var rs = ps.executeQuery()) {
+                    while (rs.next()) {
+                        found.lines.add(OrderLine.fromRS(rs));
+                    }
+                }
+
+                ps = c.prepare(SELECT_ORDER_PALLETS);
+                ps.setInt(1, orderId);
+                try (var rs = ps.executeQuery()) {
+                    while (rs.next()) {
+                        found.addPallet(Pallet.fromRS(rs, blockedRanges));
+                    }
+                }
+            }
+        } catch (SQLException e) {
+            e.printStackTrace();
+            res.status(400);
+            return "";
+        } finally {
+            metrics.query("getOrder").since(start);
+        }
+
+        if (found == null) {
+            res.status(404);
+            return "No such order";
+        }
+
+        res.status(200);
+        return restResult(res, "getOrder", found, Order::toJson);
+    }
+
+    /**
+     * Class for orders to translate between JSON and SQL.
+     */
+    public static class Order {
+        private int id;
+        private String customer, deliveryTime;
+        private List<OrderLine> lines = new ArrayList<>();
+        private List<Pallet> pallets = new ArrayList<>();
+
+        public Order(int id, String customer, String deliveryTime) {
+            this.id = id;
+            this.customer = customer;
+            this.deliveryTime = deliveryTime;
+        }
+
+        public static Order fromRS(ResultSet rs) throws SQLException {
+            return new Order(rs.getInt("orderId"), rs.getString("customerName"),
+                rs.getString("deliveryTime"));
+        }
+
+        /**
+         * Reads a new order, the body of POST /orders.
+         */
+        public static Order fromJson(JsonReader in) throws IOException {
+            var order = new Order(0, null, null);
+            in.beginObject();
+            while (in.hasNext()) {
+                switch (in.nextName()) {
+                    case "customer":
+                        order.customer = JsonCodec.nextString(in);
+                        break;
+                    case "deliveryTime":
+                        order.deliveryTime = JsonCodec.nextString(in);
+                        break;
+                    case "cookies":
+                        order.lines = JsonCodec.readList(in, OrderLine::fromJson);
+                        break;
+                    default:
+                        in.skipValue();
+                        break;
+                }
+            }
+            in.endObject();
+            return order;
+        }
+
+        /**
+         * Adds a pallet allocated to this order to its line.
+         */
+        public void addPallet(Pallet pallet) {
+            pallets.add(pallet);
+            for (var line : lines) {
+                if (line.cookie.equals(pallet.cookie)) {
+                    line.allocated++;
+                }
+            }
+        }
+
+        /**
+         * Whether every line has all its pallets.
+         */
+        public boolean isAllocated() {
+            for (var line : lines) {
+                if (line.allocated < line.count) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        public void toJson(JsonWriter out) throws IOException {
+            out.beginObject();
+            out.name("id").value(id);
+            out.name("customer").value(customer);
+            out.name("deliveryTime").value(deliveryTime);
+            out.name("status").value(isAllocated() ? "allocated" : "open");
+            out.name("cookies");
+            JsonCodec.writeArray(out, lines, OrderLine::toJson);
+            out.name("pallets");
+            JsonCodec.writeArray(out, pallets, Pallet::toJson);
+            out.endObject();
+        }
+    }
+
+    /**
+     * Class for one cookie of an order and the pallets allocated to it.
+     */
+    public static class OrderLine {
+        private String cookie;
+        private int count;
+        private int allocated;
+
+        public OrderLine(String cookie, int count) {
+            this.cookie = cookie;
+            this.count = count;
+        }
+
+        public static OrderLine fromRS(ResultSet rs) throws SQLException {
+            return new OrderLine(rs.getString("productName"), rs.getInt("orderAmount"));
+        }
+
+        public static OrderLine fromJson(JsonReader in) throws IOException {
+            String cookie = null;
+            int count = 0;
+            in.beginObject();
+            while (in.hasNext()) {
+                switch (in.nextName()) {
+                    case "cookie":
+                        cookie = JsonCodec.nextString(in);
+                        break;
+                    case "count":
+                        count = in.nextInt();
+                        break;
+                    default:
+                        in.skipValue();
+                        break;
+                }
+            }
+            in.endObject();
+            return new OrderLine(cookie, count);
+        }
+
+        public void toJson(JsonWriter out) throws IOException {
+            out.beginObject();
+            out.name("cookie").value(cookie);
+            out.name("count").value(count);
+            out.name("allocated").value(allocated);
+            out.endObject();
         }
     }
 }
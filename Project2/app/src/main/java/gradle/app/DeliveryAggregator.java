@@ -0,0 +1,270 @@
+package gradle.app;
+
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * DeliveryAggregator takes in deliveries of ingredients and writes
+ * them to wareHouse behind the request. Deliveries of an ingredient
+ * are summed in memory until the next flush, which writes every
+ * ingredient with pending deliveries in one transaction, one UPDATE
+ * each. A flush runs every flushIntervalMillis, or as soon as
+ * flushThreshold deliveries are pending.
+ *
+ * The total of each ingredient is kept by the Inventory, which a
+ * delivery is added to before it is answered. Flushes add to
+ * totalAmount rather than set it, so other writes that change it
+ * needn't flush first. A delivery is added to the Inventory and queued
+ * under a shared lock, which flushes and reloads take exclusively, so
+ * neither sees a delivery that is counted but not queued.
+ *
+ * A crash loses the deliveries of at most the last interval.
+ */
+public class DeliveryAggregator implements AutoCloseable {
+    private final Inventory inventory;
+    private final WritePipeline pipeline;
+    private final int flushThreshold;
+    private final ConcurrentHashMap<String, Pending> waiting = new ConcurrentHashMap<>();
+    private final AtomicInteger pending = new AtomicInteger();
+    private final AtomicBoolean flushRequested = new AtomicBoolean();
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final ScheduledExecutorService flusher;
+
+    private final LongAdder deliveries = new LongAdder();
+    private final LongAdder flushes = new LongAdder();
+    private final LongAdder rowsWritten = new LongAdder();
+
+    private DeliveryAggregator(Inventory inventory, WritePipeline pipeline, int flushThreshold) {
+        this.inventory = inventory;
+        this.pipeline = pipeline;
+        this.flushThreshold = flushThreshold;
+        this.flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+            var thread = new Thread(r, "delivery-flusher");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Creates an aggregator and starts its flusher. The flusher is
+     * scheduled once the aggregator is constructed, so it never sees a
+     * half-built one.
+     */
+    public static DeliveryAggregator start(Inventory inventory, WritePipeline pipeline,
+            long flushIntervalMillis, int flushThreshold) {
+        var aggregator = new DeliveryAggregator(inventory, pipeline, flushThreshold);
+        aggregator.flusher.scheduleWithFixedDelay(aggregator::flushQuietly, flushIntervalMillis,
+            flushIntervalMillis, TimeUnit.MILLISECONDS);
+        return aggregator;
+    }
+
+    /**
+     * Adds a delivery of quantity to ingredient.
+     *
+     * @param ingredient
+     * @param quantity
+     * @param deliveryTime
+     * @return the new total of ingredient, or -1 if there is no such ingredient.
+     */
+    public long add(String ingredient, int quantity, String deliveryTime) {
+        long total;
+        lock.readLock().lock();
+        try {
+            total = inventory.add(ingredient, quantity);
+            if (total < 0) {
+                return -1;
+            }
+            waiting.computeIfAbsent(ingredient, i -> new Pending()).add(quantity, deliveryTime);
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        deliveries.increment();
+        if (pending.incrementAndGet() >= flushThreshold && flushRequested.compareAndSet(false, true)) {
+            flusher.execute(this::flushQuietly);
+        }
+        return total;
+    }
+
+    /**
+     * Writes all pending deliveries to wareHouse through the write
+     * pipeline, and waits until they have committed.
+     */
+    public void flush() throws SQLException {
+        pipeline.execute(tx -> {
+            flush(tx);
+            return null;
+        });
+    }
+
+    static final String ADD_DELIVERIES =
+        """
+        UPDATE wareHouse
+        SET    totalAmount = (totalAmount + ?),
+               lastDelivered = ?,
+               lastDeliveredAmount = ?
+        WHERE  ingredientName = ?
+        """;
+
+    /**
+     * Writes all pending deliveries in tx. If tx is rolled back, the
+     * deliveries are pending again.
+     */
+    public void flush(WritePipeline.Transaction tx) throws SQLException {
+        flushRequested.set(false);
+        var batch = new ArrayList<Delivery>();
+        lock.writeLock().lock();
+        try {
+            for (var entry : waiting.entrySet()) {
+                var delivery = entry.getValue().drain(entry.getKey());
+                if (delivery != null) {
+                    batch.add(delivery);
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+        if (batch.isEmpty()) {
+            return;
+        }
+        pending.addAndGet(-batch.stream().mapToInt(d -> d.count).sum());
+        tx.onRollback(() -> {
+            for (var delivery : batch) {
+                waiting.computeIfAbsent(delivery.ingredient, i -> new Pending()).restore(delivery);
+                pending.addAndGet(delivery.count);
+            }
+        });
+        tx.afterCommit(() -> {
+            flushes.increment();
+            rowsWritten.add(batch.size());
+        });
+
+        var ps = tx.prepare(ADD_DELIVERIES);
+        for (var delivery : batch) {
+            ps.setLong(1, delivery.quantity);
+            ps.setString(2, delivery.lastTime);
+            ps.setInt(3, delivery.lastQuantity);
+            ps.setString(4, delivery.ingredient);
+            ps.addBatch();
+        }
+        ps.executeBatch();
+    }
+
+    /**
+     * Forgets all pending deliveries and loads the Inventory again from
+     * wareHouse on c, when its rows have been replaced.
+     */
+    public void reload(ConnectionPool.PooledConnection c) throws SQLException {
+        lock.writeLock().lock();
+        try {
+            waiting.clear();
+            pending.set(0);
+            inventory.load(c);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public long deliveries() {
+        return deliveries.sum();
+    }
+
+    public long flushes() {
+        return flushes.sum();
+    }
+
+    public long rowsWritten() {
+        return rowsWritten.sum();
+    }
+
+    /**
+     * Stops the flusher and writes what is still pending.
+     */
+    @Override
+    public void close() {
+        flusher.shutdown();
+        try {
+            flusher.awaitTermination(5, TimeUnit.SECONDS);
+            flush();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void flushQuietly() {
+        try {
+            flush();
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * The deliveries of one ingredient since the last flush.
+     */
+    private static class Pending {
+        private long quantity;
+        private int count;
+        private String lastTime;
+        private int lastQuantity;
+
+        synchronized void add(int quantity, String deliveryTime) {
+            this.quantity += quantity;
+            count++;
+            lastTime = deliveryTime;
+            lastQuantity = quantity;
+        }
+
+        /**
+         * Takes the pending deliveries, to be written.
+         */
+        synchronized Delivery drain(String ingredient) {
+            if (count == 0) {
+                return null;
+            }
+            var delivery = new Delivery(ingredient, quantity, count, lastTime, lastQuantity);
+            quantity = 0;
+            count = 0;
+            return delivery;
+        }
+
+        /**
+         * Puts back deliveries whose flush failed.
+         */
+        synchronized void restore(Delivery delivery) {
+            quantity += delivery.quantity;
+            if (count == 0) {
+                lastTime = delivery.lastTime;
+                lastQuantity = delivery.lastQuantity;
+            }
+            count += delivery.count;
+        }
+    }
+
+    /**
+     * The deliveries of one ingredient written by one flush.
+     */
+    private static class Delivery {
+        private final String ingredient;
+        private final long quantity;
+        private final int count;
+        private final String lastTime;
+        private final int lastQuantity;
+
+        Delivery(String ingredient, long quantity, int count, String lastTime, int lastQuantity) {
+            this.ingredient = ingredient;
+            this.quantity = quantity;
+            this.count = count;
+            this.lastTime = lastTime;
+            this.lastQuantity = lastQuantity;
+        }
+    }
+}
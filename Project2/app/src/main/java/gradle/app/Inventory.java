@@ -0,0 +1,151 @@
+package gradle.app;
+
+import java.sql.SQLException;
+import java.util.*;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Inventory keeps the stock of every ingredient in memory, so that
+ * stock is read without SQL. It is loaded from wareHouse when the
+ * database is opened, and from then on every change to totalAmount
+ * goes through it: a delivery is added as it is taken in, before the
+ * DeliveryAggregator writes it behind the response, and baking takes
+ * its ingredients once its write has committed. A read sees every
+ * acknowledged delivery and bake, and nothing of a bake that may still
+ * be rolled back.
+ *
+ * Totals are atomic counters in a map sorted by ingredient name, so
+ * neither reads nor deliveries take a lock. Loading builds a new map
+ * and swaps it in whole, so a read never sees half of it. Baking is checked against
+ * the total less what earlier bakes of the same, not yet committed,
+ * write batch have reserved. Only the writer thread reserves, and
+ * deliveries only add, so stock that passed the check is still there
+ * when the bake commits.
+ */
+public class Inventory {
+    private volatile ConcurrentSkipListMap<String, Item> items = new ConcurrentSkipListMap<>();
+
+    static final String SELECT_STOCK =
+        """
+        SELECT ingredientName, totalAmount, unit
+        FROM   wareHouse
+        """;
+
+    /**
+     * Replaces the stock with what wareHouse holds.
+     */
+    public void load(ConnectionPool.PooledConnection c) throws SQLException {
+        var loaded = new ConcurrentSkipListMap<String, Item>();
+        try (var rs = c.prepare(SELECT_STOCK).executeQuery()) {
+            while (rs.next()) {
+                loaded.put(rs.getString("ingredientName"),
+                    new Item(rs.getString("unit"), rs.getLong("totalAmount")));
+            }
+        }
+        items = loaded;
+    }
+
+    /**
+     * Adds ingredient, with no stock, once its row has been committed.
+     */
+    public void added(String ingredient, String unit) {
+        items.putIfAbsent(ingredient, new Item(unit, 0));
+    }
+
+    /**
+     * Adds a delivery of quantity to ingredient.
+     *
+     * @return the new total, or -1 if there is no such ingredient.
+     */
+    public long add(String ingredient, long quantity) {
+        var item = items.get(ingredient);
+        return item == null ? -1 : item.total.addAndGet(quantity);
+    }
+
+    /**
+     * The total of ingredient, or -1 if there is no such ingredient.
+     */
+    public long total(String ingredient) {
+        var item = items.get(ingredient);
+        return item == null ? -1 : item.total.get();
+    }
+
+    /**
+     * Reserves amounts, the ingredients a bake in tx uses, if every one
+     * of them is in stock. They are taken from the totals once tx has
+     * committed, and given back if it is rolled back. Must be called on
+     * the writer thread.
+     *
+     * @return whether the stock was reserved; false if amounts is
+     *         empty, an ingredient is missing or there isn't enough.
+     */
+    public boolean reserve(WritePipeline.Transaction tx, Map<String, Long> amounts) {
+        if (amounts.isEmpty()) {
+            return false;
+        }
+        var reserved = new HashMap<Item, Long>();
+        for (var entry : amounts.entrySet()) {
+            var item = items.get(entry.getKey());
+            if (item == null || item.total.get() - item.reserved.get() < entry.getValue()) {
+                return false;
+            }
+            reserved.put(item, entry.getValue());
+        }
+
+        for (var entry : reserved.entrySet()) {
+            var item = entry.getKey();
+            long amount = entry.getValue();
+            item.reserved.addAndGet(amount);
+            tx.onRollback(() -> item.reserved.addAndGet(-amount));
+            tx.afterCommit(() -> {
+                item.total.addAndGet(-amount);
+                item.reserved.addAndGet(-amount);
+            });
+        }
+        return true;
+    }
+
+    /**
+     * The stock of up to limit ingredients, by name, starting after the
+     * name after, or from the first if it is null.
+     */
+    public List<Database.Material> materials(String after, int limit) {
+        var all = items;
+        var from = after == null ? all : all.tailMap(after, false);
+        var found = new ArrayList<Database.Material>(Math.min(limit, from.size()));
+        for (var entry : from.entrySet()) {
+            if (found.size() == limit) {
+                break;
+            }
+            var item = entry.getValue();
+            found.add(new Database.Material(entry.getKey(), (int) item.total.get(), item.unit));
+        }
+        return found;
+    }
+
+    /**
+     * Forgets all stock, when wareHouse has been emptied.
+     */
+    public void clear() {
+        items = new ConcurrentSkipListMap<>();
+    }
+
+    public int size() {
+        return items.size();
+    }
+
+    /**
+     * The stock of one ingredient.
+     */
+    private static class Item {
+        private final String unit;
+        private final AtomicLong total;
+        private final AtomicLong reserved = new AtomicLong();
+
+        Item(String unit, long total) {
+            this.unit = unit;
+            this.total = new AtomicLong(total);
+        }
+    }
+}
@@ -0,0 +1,387 @@
+package gradle.app;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+import spark.Response;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * JsonCodec reads request bodies and writes responses with the
+ * streaming JsonReader and JsonWriter, through the fromJson and toJson
+ * methods of each DTO in Database, instead of through reflection.
+ *
+ * Responses are encoded as UTF-8 into a buffer taken from a small
+ * shared pool, and are then written straight to the response stream
+ * with a Content-Length. Streamed responses drain the same buffer
+ * whenever it fills up. Requests run on virtual threads, which live for
+ * one request each, so the buffers are pooled rather than kept per
+ * thread.
+ */
+public class JsonCodec {
+    private static final int BUFFER_SIZE = 8192;
+
+    /**
+     * A pooled buffer keeps at most this much between requests, so that
+     * one large response doesn't pin memory for good.
+     */
+    private static final int MAX_RETAINED_SIZE = 256 * 1024;
+
+    /**
+     * Buffers kept between requests. When the pool is empty a request
+     * gets a new buffer, and when it is full a returned buffer is left
+     * to the garbage collector.
+     */
+    private static final int POOL_SIZE = 64;
+
+    private static final BlockingQueue<Utf8Buffer> BUFFERS = new ArrayBlockingQueue<>(POOL_SIZE);
+
+    /**
+     * Reads one value from a JsonReader.
+     */
+    public interface Decoder<T> {
+        T read(JsonReader in) throws IOException;
+    }
+
+    /**
+     * Writes one value to a JsonWriter.
+     */
+    public interface Encoder<T> {
+        void write(T value, JsonWriter out) throws IOException;
+    }
+
+    /**
+     * Writes a whole response body to a JsonWriter.
+     */
+    public interface Body {
+        void write(JsonWriter out) throws IOException;
+    }
+
+    /**
+     * Decodes a request body.
+     *
+     * @param body
+     * @param decoder
+     * @return the decoded value.
+     * @throws IllegalArgumentException if body is not JSON of the right shape.
+     */
+    public static <T> T read(String body, Decoder<T> decoder) {
+        if (body == null || body.isBlank()) {
+            throw new IllegalArgumentException("Empty body");
+        }
+        try {
+            var in = new JsonReader(new StringReader(body));
+            var value = decoder.read(in);
+            if (in.peek() != JsonToken.END_DOCUMENT) {
+                throw new IllegalArgumentException("Trailing data in body");
+            }
+            return value;
+        } catch (IOException | IllegalStateException | NumberFormatException e) {
+            throw new IllegalArgumentException("Bad body: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Decodes a JSON array with decoder for each element.
+     */
+    public static <T> List<T> readList(JsonReader in, Decoder<T> decoder) throws IOException {
+        var found = new ArrayList<T>();
+        in.beginArray();
+        while (in.hasNext()) {
+            found.add(decoder.read(in));
+        }
+        in.endArray();
+        return found;
+    }
+
+    /**
+     * Reads a string that may be null.
+     */
+    public static String nextString(JsonReader in) throws IOException {
+        if (in.peek() == JsonToken.NULL) {
+            in.nextNull();
+            return null;
+        }
+        return in.nextString();
+    }
+
+    /**
+     * Writes {"data": [...]} to res, the form every list endpoint
+     * answers with, and the cursor of the next page if there is one.
+     */
+    public static <T> void writeResult(Response res, List<T> data, Encoder<T> encoder, String next)
+            throws IOException {
+        write(res, result(data, encoder, next));
+    }
+
+    /**
+     * The body writeResult writes.
+     */
+    public static <T> Body result(List<T> data, Encoder<T> encoder, String next) {
+        return out -> {
+            out.beginObject();
+            out.name("data");
+            writeArray(out, data, encoder);
+            out.name("next").value(next);
+            out.endObject();
+        };
+    }
+
+    /**
+     * Writes {"data": value} to res.
+     */
+    public static <T> void writeResult(Response res, T value, Encoder<T> encoder) throws IOException {
+        write(res, out -> {
+            out.beginObject();
+            out.name("data");
+            encoder.write(value, out);
+            out.endObject();
+        });
+    }
+
+    /**
+     * Writes {"location": location} to res, the answer to a POST that
+     * created something.
+     */
+    public static void writeLocation(Response res, String location) throws IOException {
+        write(res, out -> {
+            out.beginObject();
+            out.name("location").value(location);
+            out.endObject();
+        });
+    }
+
+    public static <T> void writeArray(JsonWriter out, List<T> values, Encoder<T> encoder) throws IOException {
+        out.beginArray();
+        for (var value : values) {
+            encoder.write(value, out);
+        }
+        out.endArray();
+    }
+
+    /**
+     * Encodes body into a pooled buffer, then writes it to res in
+     * one go with its length.
+     */
+    public static void write(Response res, Body body) throws IOException {
+        res.type("application/json");
+        var buffer = acquire();
+        buffer.reset(null);
+        try {
+            body.write(writer(buffer));
+            res.raw().setContentLength(buffer.length);
+            res.raw().getOutputStream().write(buffer.bytes, 0, buffer.length);
+        } finally {
+            release(buffer);
+        }
+    }
+
+    /**
+     * Encodes body through a pooled buffer, writing to res whenever
+     * the buffer is full, for responses that are too large to hold.
+     */
+    public static void stream(Response res, Body body) throws IOException {
+        stream(res, body, 0);
+    }
+
+    /**
+     * Streams body to res like stream, and returns a copy of what was
+     * written, or null if it came to more than maxCopy bytes.
+     */
+    public static byte[] stream(Response res, Body body, int maxCopy) throws IOException {
+        res.type("application/json");
+        var buffer = acquire();
+        var out = new Copy(res.raw().getOutputStream(), maxCopy);
+        buffer.reset(out);
+        try {
+            body.write(writer(buffer));
+            out.write(buffer.bytes, 0, buffer.length);
+            out.flush();
+        } finally {
+            release(buffer);
+        }
+        return out.copy == null ? null : out.copy.toByteArray();
+    }
+
+    /**
+     * Encodes body into a new array, for a response that is kept.
+     */
+    public static byte[] encode(Body body) throws IOException {
+        var buffer = acquire();
+        buffer.reset(null);
+        try {
+            body.write(writer(buffer));
+            return Arrays.copyOf(buffer.bytes, buffer.length);
+        } finally {
+            release(buffer);
+        }
+    }
+
+    /**
+     * Writes an encoded body to res with its length.
+     */
+    public static void write(Response res, byte[] body) throws IOException {
+        res.type("application/json");
+        res.raw().setContentLength(body.length);
+        res.raw().getOutputStream().write(body);
+    }
+
+    private static Utf8Buffer acquire() {
+        var buffer = BUFFERS.poll();
+        return buffer != null ? buffer : new Utf8Buffer();
+    }
+
+    private static void release(Utf8Buffer buffer) {
+        buffer.release();
+        BUFFERS.offer(buffer);
+    }
+
+    private static JsonWriter writer(Utf8Buffer buffer) {
+        var out = new JsonWriter(buffer);
+        out.setSerializeNulls(false);
+        return out;
+    }
+
+    /**
+     * An OutputStream that passes everything on to out, and keeps a copy
+     * until more than maxCopy bytes have gone by.
+     */
+    private static class Copy extends OutputStream {
+        private final OutputStream out;
+        private final int maxCopy;
+        private ByteArrayOutputStream copy;
+
+        Copy(OutputStream out, int maxCopy) {
+            this.out = out;
+            this.maxCopy = maxCopy;
+            this.copy = maxCopy > 0 ? new ByteArrayOutputStream(BUFFER_SIZE) : null;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            if (copy != null) {
+                if (copy.size() + len > maxCopy) {
+                    copy = null;
+                } else {
+                    copy.write(b, off, len);
+                }
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+    }
+
+    /**
+     * A Writer that encodes to UTF-8 in a reusable byte array. With a
+     * sink, full buffers are drained to it, otherwise the array grows.
+     */
+    private static class Utf8Buffer extends Writer {
+        private byte[] bytes = new byte[BUFFER_SIZE];
+        private int length;
+        private char highSurrogate;
+        private OutputStream sink;
+
+        void reset(OutputStream sink) {
+            this.length = 0;
+            this.highSurrogate = 0;
+            this.sink = sink;
+        }
+
+        void release() {
+            sink = null;
+            if (bytes.length > MAX_RETAINED_SIZE) {
+                bytes = new byte[BUFFER_SIZE];
+            }
+        }
+
+        @Override
+        public void write(int c) throws IOException {
+            put((char) c);
+        }
+
+        @Override
+        public void write(char[] cbuf, int off, int len) throws IOException {
+            for (int i = off; i < off + len; i++) {
+                put(cbuf[i]);
+            }
+        }
+
+        @Override
+        public void write(String s, int off, int len) throws IOException {
+            for (int i = off; i < off + len; i++) {
+                put(s.charAt(i));
+            }
+        }
+
+        private void put(char c) throws IOException {
+            ensureCapacity(4);
+            if (highSurrogate != 0) {
+                char high = highSurrogate;
+                highSurrogate = 0;
+                if (Character.isLowSurrogate(c)) {
+                    int codePoint = Character.toCodePoint(high, c);
+                    bytes[length++] = (byte) (0xf0 | (codePoint >> 18));
+                    bytes[length++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+                    bytes[length++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+                    bytes[length++] = (byte) (0x80 | (codePoint & 0x3f));
+                    return;
+                }
+                bytes[length++] = '?';
+                ensureCapacity(4);
+            }
+
+            if (c < 0x80) {
+                bytes[length++] = (byte) c;
+            } else if (c < 0x800) {
+                bytes[length++] = (byte) (0xc0 | (c >> 6));
+                bytes[length++] = (byte) (0x80 | (c & 0x3f));
+            } else if (Character.isHighSurrogate(c)) {
+                highSurrogate = c;
+            } else if (Character.isLowSurrogate(c)) {
+                bytes[length++] = '?';
+            } else {
+                bytes[length++] = (byte) (0xe0 | (c >> 12));
+                bytes[length++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                bytes[length++] = (byte) (0x80 | (c & 0x3f));
+            }
+        }
+
+        private void ensureCapacity(int needed) throws IOException {
+            if (length + needed <= bytes.length) {
+                return;
+            }
+            if (sink != null) {
+                sink.write(bytes, 0, length);
+                length = 0;
+            } else {
+                bytes = Arrays.copyOf(bytes, bytes.length * 2);
+            }
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,243 @@
+package gradle.app;
+
+import spark.Route;
+import java.math.BigDecimal;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+
+/**
+ * Metrics keeps latency histograms of every route and of the database
+ * and JSON work behind it, and renders them in the Prometheus text
+ * format together with the counters of the pool, caches and write
+ * pipeline.
+ *
+ * Recording is lock-free and allocates nothing once a histogram
+ * exists: a histogram is looked up by a constant name and adds to one
+ * bucket of fixed bounds. Histograms are created on first use and
+ * live as long as the Metrics.
+ */
+public class Metrics {
+
+    /**
+     * Upper bounds of the histogram buckets, in nanoseconds, from 25
+     * microseconds to 10 seconds. Anything slower falls in +Inf.
+     */
+    private static final long[] BOUNDS = {
+        25_000L, 50_000L, 100_000L, 250_000L, 500_000L,
+        1_000_000L, 2_500_000L, 5_000_000L, 10_000_000L, 25_000_000L, 50_000_000L,
+        100_000_000L, 250_000_000L, 500_000_000L,
+        1_000_000_000L, 2_500_000_000L, 5_000_000_000L, 10_000_000_000L,
+    };
+
+    private static final double NANOS_PER_SECOND = 1e9;
+
+    /**
+     * BOUNDS in seconds, as they go in the le label.
+     */
+    private static final String[] LE = new String[BOUNDS.length + 1];
+
+    static {
+        for (int i = 0; i < BOUNDS.length; i++) {
+            LE[i] = BigDecimal.valueOf(BOUNDS[i], 9).stripTrailingZeros().toPlainString();
+        }
+        LE[BOUNDS.length] = "+Inf";
+    }
+
+    private final ConcurrentHashMap<String, Histogram> routes = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, LongAdder> routeErrors = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Histogram> queries = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Histogram> json = new ConcurrentHashMap<>();
+    private final Map<String, Family> families = new LinkedHashMap<>();
+
+    /**
+     * Wraps route so that its time is recorded under name, and every
+     * response with a status of 400 or more is counted as an error.
+     */
+    public Route timed(String name, Route route) {
+        var histogram = routes.computeIfAbsent(name, n -> new Histogram());
+        var errors = routeErrors.computeIfAbsent(name, n -> new LongAdder());
+        return (req, res) -> {
+            long start = System.nanoTime();
+            boolean failed = true;
+            try {
+                var body = route.handle(req, res);
+                failed = res.status() >= 400;
+                return body;
+            } finally {
+                histogram.since(start);
+                if (failed) {
+                    errors.increment();
+                }
+            }
+        };
+    }
+
+    /**
+     * The histogram of time spent in the database by the query name.
+     */
+    public Histogram query(String name) {
+        var histogram = queries.get(name);
+        return histogram != null ? histogram : queries.computeIfAbsent(name, n -> new Histogram());
+    }
+
+    /**
+     * The histogram of time spent writing the JSON response of name.
+     */
+    public Histogram json(String name) {
+        var histogram = json.get(name);
+        return histogram != null ? histogram : json.computeIfAbsent(name, n -> new Histogram());
+    }
+
+    /**
+     * Exports value as a counter, a value that only grows.
+     *
+     * @param name
+     * @param labels as they go between the braces, e.g. kind="read", or "".
+     * @param help
+     * @param value
+     */
+    public synchronized void counter(String name, String labels, String help, DoubleSupplier value) {
+        family(name, "counter", help).samples.put(labels, value);
+    }
+
+    /**
+     * Exports value as a gauge, a value that goes up and down.
+     */
+    public synchronized void gauge(String name, String labels, String help, DoubleSupplier value) {
+        family(name, "gauge", help).samples.put(labels, value);
+    }
+
+    private Family family(String name, String type, String help) {
+        var family = families.computeIfAbsent(name, n -> new Family(type, help));
+        if (!family.type.equals(type)) {
+            throw new IllegalArgumentException(name + " is already a " + family.type);
+        }
+        return family;
+    }
+
+    /**
+     * Renders every metric in the Prometheus text exposition format.
+     */
+    public synchronized String scrape() {
+        var out = new StringBuilder(16 * 1024);
+        histograms(out, "krusty_http_request_duration_seconds", "route",
+            "Time spent handling requests, per route.", routes);
+        family(out, "krusty_http_request_errors_total", "counter",
+            "Responses with a status of 400 or more, per route.");
+        for (var entry : new TreeMap<>(routeErrors).entrySet()) {
+            sample(out, "krusty_http_request_errors_total", "route=" + quote(entry.getKey()),
+                entry.getValue().sum());
+        }
+        histograms(out, "krusty_db_query_duration_seconds", "query",
+            "Time spent in the database, per query.", queries);
+        histograms(out, "krusty_json_write_duration_seconds", "response",
+            "Time spent writing JSON responses, per response.", json);
+
+        for (var entry : families.entrySet()) {
+            var family = entry.getValue();
+            family(out, entry.getKey(), family.type, family.help);
+            for (var sample : family.samples.entrySet()) {
+                sample(out, entry.getKey(), sample.getKey(), sample.getValue().getAsDouble());
+            }
+        }
+        return out.toString();
+    }
+
+    private static void histograms(StringBuilder out, String name, String label, String help,
+            Map<String, Histogram> histograms) {
+        family(out, name, "histogram", help);
+        for (var entry : new TreeMap<>(histograms).entrySet()) {
+            var labels = label + "=" + quote(entry.getKey());
+            entry.getValue().write(out, name, labels);
+        }
+    }
+
+    private static void family(StringBuilder out, String name, String type, String help) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void sample(StringBuilder out, String name, String labels, double value) {
+        out.append(name);
+        if (!labels.isEmpty()) {
+            out.append('{').append(labels).append('}');
+        }
+        out.append(' ');
+        if (value == Math.rint(value) && Math.abs(value) < 1e15) {
+            out.append((long) value);
+        } else {
+            out.append(value);
+        }
+        out.append('\n');
+    }
+
+    private static String quote(String value) {
+        return '"' + value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n") + '"';
+    }
+
+    /**
+     * A latency histogram with fixed buckets. Buckets are LongAdders,
+     * so threads recording at once don't contend on one counter.
+     */
+    public static class Histogram {
+        private final LongAdder[] buckets = new LongAdder[BOUNDS.length + 1];
+        private final LongAdder sumNanos = new LongAdder();
+
+        public Histogram() {
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        public void record(long nanos) {
+            int i = Arrays.binarySearch(BOUNDS, nanos);
+            buckets[i >= 0 ? i : -i - 1].increment();
+            sumNanos.add(nanos);
+        }
+
+        /**
+         * Records the time since start, a System.nanoTime().
+         */
+        public void since(long start) {
+            record(System.nanoTime() - start);
+        }
+
+        public long count() {
+            long count = 0;
+            for (var bucket : buckets) {
+                count += bucket.sum();
+            }
+            return count;
+        }
+
+        public long sumNanos() {
+            return sumNanos.sum();
+        }
+
+        void write(StringBuilder out, String name, String labels) {
+            long cumulative = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                cumulative += buckets[i].sum();
+                sample(out, name + "_bucket", labels + ",le=\"" + LE[i] + '"', cumulative);
+            }
+            sample(out, name + "_sum", labels, sumNanos() / NANOS_PER_SECOND);
+            sample(out, name + "_count", labels, cumulative);
+        }
+    }
+
+    /**
+     * The samples of one exported counter or gauge.
+     */
+    private static class Family {
+        private final String type;
+        private final String help;
+        private final Map<String, DoubleSupplier> samples = new LinkedHashMap<>();
+
+        Family(String type, String help) {
+            this.type = type;
+            this.help = help;
+        }
+    }
+}
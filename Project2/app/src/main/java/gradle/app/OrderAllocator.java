@@ -0,0 +1,328 @@
+package gradle.app;
+
+import java.sql.SQLException;
+import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * OrderAllocator assigns pallets to the lines of open orders. It keeps,
+ * per product, a queue of the pallets no order has yet, in the order
+ * they were baked by pallet number (their rowid), and a queue of the
+ * order lines still waiting for pallets, in the order they were placed.
+ * Allocating takes pallets off the front of the one for lines off the
+ * front of the other, and writes each pallet by its palletId, so no
+ * order line searches pallets.
+ *
+ * Allocation runs whenever pallets may meet open lines: when an order
+ * is placed, when pallets are baked and when pallets are unblocked.
+ * Blocked pallets are set aside when allocating comes across them, and
+ * queued again when pallets of their product are unblocked, so each is
+ * looked at once per unblock rather than on every allocation.
+ *
+ * Everything here changes on the writer thread, inside the write that
+ * changes the tables, and each change is undone if that write is rolled
+ * back. The queues are rebuilt from the tables when the database is
+ * opened.
+ */
+public class OrderAllocator {
+    private final BlockedRanges blockedRanges;
+    private final Map<String, TreeSet<Available>> available = new HashMap<>();
+    private final Map<String, List<Available>> held = new HashMap<>();
+    private final Map<String, TreeMap<Integer, Line>> open = new HashMap<>();
+    private int lastOrderId;
+    private int availablePallets;
+    private int openLines;
+
+    private final LongAdder allocated = new LongAdder();
+
+    /**
+     * @param blockedRanges read in the allocating write, to skip
+     *        blocked pallets.
+     */
+    public OrderAllocator(BlockedRanges blockedRanges) {
+        this.blockedRanges = blockedRanges;
+    }
+
+    static final String SELECT_AVAILABLE =
+        """
+        SELECT palletId, productName, productionDate, rowid AS palletNumber
+        FROM   pallets
+        WHERE  orderId IS NULL
+        """;
+
+    static final String SELECT_OPEN_LINES =
+        """
+        SELECT orderId, productName, orderAmount - (
+                   SELECT count(*)
+                   FROM   pallets
+                   WHERE  pallets.orderId = orderStatus.orderId AND
+                          pallets.productName = orderStatus.productName) AS remaining
+        FROM   orderStatus
+        """;
+
+    static final String SELECT_LAST_ORDER =
+        """
+        SELECT max(orderId) AS orderId
+        FROM   orders
+        """;
+
+    /**
+     * Replaces the queues with the pallets without an order and the
+     * lines not yet filled in the tables.
+     */
+    public synchronized void load(ConnectionPool.PooledConnection c) throws SQLException {
+        clear();
+        try (var rs = c.prepare(SELECT_AVAILABLE).executeQuery()) {
+            while (rs.next()) {
+                var pallet = new Available(rs.getString("productionDate"), rs.getString("palletId"),
+                    rs.getLong("palletNumber"));
+                if (available(rs.getString("productName")).add(pallet)) {
+                    availablePallets++;
+                }
+            }
+        }
+        try (var rs = c.prepare(SELECT_OPEN_LINES).executeQuery()) {
+            while (rs.next()) {
+                if (rs.getInt("remaining") > 0) {
+                    var line = new Line(rs.getInt("orderId"), rs.getInt("remaining"));
+                    open(rs.getString("productName")).put(line.orderId, line);
+                    openLines++;
+                }
+            }
+        }
+        try (var rs = c.prepare(SELECT_LAST_ORDER).executeQuery()) {
+            lastOrderId = Math.max(lastOrderId, rs.next() ? rs.getInt("orderId") : 0);
+        }
+    }
+
+    /**
+     * The id of a new order. Ids are never handed out twice, even if
+     * the order isn't placed.
+     */
+    public synchronized int nextOrderId() {
+        return ++lastOrderId;
+    }
+
+    /**
+     * Queues the lines of the order orderId, placed in tx, and
+     * allocates what pallets there are to them.
+     *
+     * @param tx
+     * @param orderId
+     * @param lines the number of pallets ordered of each product.
+     */
+    public synchronized void placed(WritePipeline.Transaction tx, int orderId, Map<String, Integer> lines)
+            throws SQLException {
+        for (var entry : lines.entrySet()) {
+            var queue = open(entry.getKey());
+            queue.put(orderId, new Line(orderId, entry.getValue()));
+            openLines++;
+            tx.onRollback(() -> {
+                synchronized (this) {
+                    if (queue.remove(orderId) != null) {
+                        openLines--;
+                    }
+                }
+            });
+            allocate(tx, entry.getKey());
+        }
+    }
+
+    /**
+     * Queues the pallets baked in tx, and allocates them to open lines.
+     *
+     * @param tx
+     * @param product
+     * @param productionDate
+     * @param ids the palletIds, in the order they were inserted.
+     * @param firstNumber the pallet number of the first of them.
+     */
+    public synchronized void baked(WritePipeline.Transaction tx, String product, String productionDate,
+            List<String> ids, long firstNumber) throws SQLException {
+        var queue = available(product);
+        var pallets = new ArrayList<Available>(ids.size());
+        for (var id : ids) {
+            pallets.add(new Available(productionDate, id, firstNumber + pallets.size()));
+        }
+        queue.addAll(pallets);
+        availablePallets += pallets.size();
+        tx.onRollback(() -> {
+            synchronized (this) {
+                queue.removeAll(pallets);
+                availablePallets -= pallets.size();
+            }
+        });
+        allocate(tx, product);
+    }
+
+    /**
+     * Queues the pallets of product set aside as blocked again, and
+     * allocates them to its open lines, after pallets of product have
+     * been unblocked in tx.
+     */
+    public synchronized void unblocked(WritePipeline.Transaction tx, String product) throws SQLException {
+        var aside = held.remove(product);
+        if (aside != null) {
+            var queue = available(product);
+            queue.addAll(aside);
+            tx.onRollback(() -> {
+                synchronized (this) {
+                    queue.removeAll(aside);
+                    held(product).addAll(aside);
+                }
+            });
+        }
+        allocate(tx, product);
+    }
+
+    static final String ALLOCATE_PALLET =
+        """
+        UPDATE pallets
+        SET    orderId = ?
+        WHERE  palletId = ?
+        """;
+
+    /**
+     * Assigns the oldest unblocked pallets of product to its oldest open
+     * lines, until either runs out.
+     */
+    private void allocate(WritePipeline.Transaction tx, String product) throws SQLException {
+        var lines = open.get(product);
+        var pallets = available.get(product);
+        if (lines == null || lines.isEmpty() || pallets == null || pallets.isEmpty()) {
+            return;
+        }
+
+        var blocked = blockedRanges.read(tx, product);
+        var blockedPallets = blockedRanges.readPallets(tx, product, new BlockedRanges.Range(null, null));
+        var taken = new ArrayList<Available>();
+        var served = new ArrayList<Line>();
+        var aside = new ArrayList<Available>();
+        var ps = tx.prepare(ALLOCATE_PALLET);
+        var pallet = pallets.first();
+        while (pallet != null && !lines.isEmpty()) {
+            var next = pallets.higher(pallet);
+            if (blockedPallets.contains(pallet.id)
+                    || BlockedRanges.blocks(blocked, pallet.productionDate, pallet.number)) {
+                pallets.remove(pallet);
+                aside.add(pallet);
+                pallet = next;
+                continue;
+            }
+
+            var line = lines.firstEntry().getValue();
+            ps.setInt(1, line.orderId);
+            ps.setString(2, pallet.id);
+            ps.addBatch();
+            taken.add(pallet);
+            served.add(line);
+            if (--line.remaining == 0) {
+                lines.pollFirstEntry();
+                openLines--;
+            }
+
+            pallets.remove(pallet);
+            availablePallets--;
+            pallet = next;
+        }
+        if (!aside.isEmpty()) {
+            var heldAside = held(product);
+            heldAside.addAll(aside);
+            tx.onRollback(() -> {
+                synchronized (this) {
+                    heldAside.removeAll(aside);
+                    pallets.addAll(aside);
+                }
+            });
+        }
+        if (taken.isEmpty()) {
+            return;
+        }
+
+        tx.onRollback(() -> {
+            synchronized (this) {
+                pallets.addAll(taken);
+                availablePallets += taken.size();
+                for (var line : served) {
+                    if (line.remaining++ == 0) {
+                        lines.put(line.orderId, line);
+                        openLines++;
+                    }
+                }
+            }
+        });
+        tx.afterCommit(() -> allocated.add(taken.size()));
+        ps.executeBatch();
+    }
+
+    private TreeSet<Available> available(String product) {
+        return available.computeIfAbsent(product, p -> new TreeSet<>());
+    }
+
+    private List<Available> held(String product) {
+        return held.computeIfAbsent(product, p -> new ArrayList<>());
+    }
+
+    private TreeMap<Integer, Line> open(String product) {
+        return open.computeIfAbsent(product, p -> new TreeMap<>());
+    }
+
+    /**
+     * Forgets every queue, when the tables have been emptied. Order ids
+     * go on from where they were.
+     */
+    public synchronized void clear() {
+        available.clear();
+        held.clear();
+        open.clear();
+        availablePallets = 0;
+        openLines = 0;
+    }
+
+    public synchronized int availablePallets() {
+        return availablePallets;
+    }
+
+    public synchronized int openLines() {
+        return openLines;
+    }
+
+    public long allocated() {
+        return allocated.sum();
+    }
+
+    /**
+     * A pallet without an order, ordered by pallet number. Production
+     * dates are whole days and palletIds are random, so neither orders
+     * the pallets of one day the way they were baked.
+     */
+    private static class Available implements Comparable<Available> {
+        private final String productionDate;
+        private final String id;
+        private final long number;
+
+        Available(String productionDate, String id, long number) {
+            this.productionDate = productionDate;
+            this.id = id;
+            this.number = number;
+        }
+
+        @Override
+        public int compareTo(Available other) {
+            return Long.compare(number, other.number);
+        }
+    }
+
+    /**
+     * An order line still waiting for remaining pallets.
+     */
+    private static class Line {
+        private final int orderId;
+        private int remaining;
+
+        Line(int orderId, int remaining) {
+            this.orderId = orderId;
+            this.remaining = remaining;
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package gradle.app;
+
+import spark.Request;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+/**
+ * Page holds the keyset pagination parameters of a request: limit,
+ * the largest number of rows to return, and cursor, an opaque token
+ * for the key of the last row of the previous page. The next page is
+ * then read with a "key > cursor ORDER BY key LIMIT limit" query,
+ * which an index serves without skipping over earlier rows.
+ *
+ * A cursor is the parts of the key joined by newlines, with a NUL
+ * character for a part that is null, in URL-safe Base64.
+ */
+public class Page {
+    public static final int DEFAULT_LIMIT = 100;
+    public static final int MAX_LIMIT = 1000;
+
+    private static final String SEPARATOR = "\n";
+    private static final String NULL = "\0";
+
+    private final int limit;
+    private final String[] after;
+
+    private Page(int limit, String[] after) {
+        this.limit = limit;
+        this.after = after;
+    }
+
+    /**
+     * Reads limit and cursor from the query parameters of req.
+     *
+     * @param req
+     * @param keyParts number of columns in the key.
+     * @return the page, or null if the request is not paginated.
+     * @throws IllegalArgumentException if limit or cursor is malformed.
+     */
+    public static Page of(Request req, int keyParts) {
+        return of(req.queryParams("limit"), req.queryParams("cursor"), keyParts);
+    }
+
+    /**
+     * Reads a page from the limit and cursor parameters, either of
+     * which may be null.
+     */
+    static Page of(String limitParam, String cursorParam, int keyParts) {
+        if (limitParam == null && cursorParam == null) {
+            return null;
+        }
+
+        int limit = DEFAULT_LIMIT;
+        if (limitParam != null) {
+            try {
+                limit = Integer.parseInt(limitParam);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Bad limit: " + limitParam);
+            }
+            if (limit < 1 || limit > MAX_LIMIT) {
+                throw new IllegalArgumentException("Bad limit: " + limitParam);
+            }
+        }
+
+        String[] after = null;
+        if (cursorParam != null) {
+            try {
+                var key = new String(Base64.getUrlDecoder().decode(cursorParam), StandardCharsets.UTF_8);
+                after = key.split(SEPARATOR, -1);
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("Bad cursor: " + cursorParam);
+            }
+            if (after.length != keyParts) {
+                throw new IllegalArgumentException("Bad cursor: " + cursorParam);
+            }
+            for (int i = 0; i < after.length; i++) {
+                if (after[i].equals(NULL)) {
+                    after[i] = null;
+                }
+            }
+        }
+
+        return new Page(limit, after);
+    }
+
+    /**
+     * Encodes the key of the last row on a page as a cursor. Parts of
+     * the key may be null.
+     */
+    public static String cursor(String... key) {
+        var parts = new String[key.length];
+        for (int i = 0; i < key.length; i++) {
+            parts[i] = key[i] == null ? NULL : key[i];
+        }
+        var joined = String.join(SEPARATOR, parts);
+        return Base64.getUrlEncoder().withoutPadding()
+            .encodeToString(joined.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public int limit() {
+        return limit;
+    }
+
+    /**
+     * The key to continue after, or null for the first page.
+     */
+    public String[] after() {
+        return after;
+    }
+}
@@ -0,0 +1,90 @@
+package gradle.app;
+
+import java.util.*;
+
+/**
+ * PalletCounts mirrors the palletCounts table in memory, the number of
+ * pallets baked of each product, so GET /cookies is answered without
+ * a query. The table itself is kept up to date by triggers on products
+ * and pallets. The mirror is loaded from it once, and then follows
+ * every write that adds cookies or pallets, applied from the write
+ * pipeline once the write has committed.
+ *
+ * Products are listed in the order they were added. The list handed
+ * out is rebuilt on the first read after a change, and shared by all
+ * reads until the next one.
+ */
+public class PalletCounts {
+    private final LinkedHashMap<String, Long> counts = new LinkedHashMap<>();
+    private boolean loaded = false;
+    private volatile List<Database.Product> products;
+
+    /**
+     * Returns every product and its pallet count, or null if the
+     * counts have to be loaded.
+     */
+    public List<Database.Product> get() {
+        var found = products;
+        if (found != null) {
+            return found;
+        }
+
+        synchronized (this) {
+            if (!loaded) {
+                return null;
+            }
+            if (products == null) {
+                var list = new ArrayList<Database.Product>(counts.size());
+                for (var entry : counts.entrySet()) {
+                    list.add(new Database.Product(entry.getKey(), (int) (long) entry.getValue()));
+                }
+                products = Collections.unmodifiableList(list);
+            }
+            return products;
+        }
+    }
+
+    /**
+     * Takes counts read from palletCounts, in a write that has
+     * committed.
+     */
+    public synchronized void load(Map<String, Long> loaded) {
+        counts.clear();
+        counts.putAll(loaded);
+        this.loaded = true;
+        products = null;
+    }
+
+    /**
+     * A cookie has been added, with no pallets.
+     */
+    public synchronized void added(String cookie) {
+        if (loaded && counts.putIfAbsent(cookie, 0L) == null) {
+            products = null;
+        }
+    }
+
+    /**
+     * count pallets of cookie have been baked.
+     */
+    public synchronized void baked(String cookie, int count) {
+        if (loaded) {
+            counts.merge(cookie, (long) count, Long::sum);
+            products = null;
+        }
+    }
+
+    /**
+     * Forgets all counts, when the tables have been emptied or
+     * replaced, so they are loaded again on the next read.
+     */
+    public synchronized void clear() {
+        counts.clear();
+        loaded = false;
+        products = null;
+    }
+
+    public synchronized int size() {
+        return counts.size();
+    }
+}
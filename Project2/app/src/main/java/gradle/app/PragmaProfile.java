@@ -0,0 +1,101 @@
+package gradle.app;
+
+import org.sqlite.SQLiteConfig;
+import org.sqlite.SQLiteConfig.SynchronousMode;
+import org.sqlite.SQLiteConfig.TempStore;
+import java.util.Locale;
+
+/**
+ * PragmaProfile is a choice between durability and speed for every
+ * connection of the pool, picked with krusty.pragmas. All of them keep
+ * the file in WAL mode, and differ in the rest:
+ *
+ * DURABLE, the default, syncs every commit (synchronous=FULL), leaves
+ * page cache, mmap and temp_store at SQLite's defaults and lets the
+ * committing writer checkpoint the WAL, so a commit that has returned
+ * survives a power loss. The others give some of that up for speed and
+ * have to be asked for.
+ *
+ * BALANCED syncs only at checkpoints (synchronous=NORMAL), so a power
+ * loss can undo the last commits but never corrupts the file. It reads
+ * through a 256 MiB mmap and a 16 MiB page cache, keeps temporary
+ * tables and sorts in memory, and checkpoints on a background thread
+ * instead of inside commits.
+ *
+ * FAST doesn't sync at all (synchronous=OFF), which an OS crash or
+ * power loss can corrupt the file with, and maps and caches more. It
+ * is meant for benchmarks and data that can be rebuilt.
+ */
+public enum PragmaProfile {
+    DURABLE(SynchronousMode.FULL, TempStore.DEFAULT, 0, -2000, 0),
+    BALANCED(SynchronousMode.NORMAL, TempStore.MEMORY, 256L * 1024 * 1024, -16 * 1024, 1000),
+    FAST(SynchronousMode.OFF, TempStore.MEMORY, 1024L * 1024 * 1024, -64 * 1024, 1000);
+
+    private final SynchronousMode synchronous;
+    private final TempStore tempStore;
+    private final long mmapSize;
+    private final int cacheSize;
+    private final long checkpointMillis;
+
+    PragmaProfile(SynchronousMode synchronous, TempStore tempStore, long mmapSize, int cacheSize,
+            long checkpointMillis) {
+        this.synchronous = synchronous;
+        this.tempStore = tempStore;
+        this.mmapSize = mmapSize;
+        this.cacheSize = cacheSize;
+        this.checkpointMillis = checkpointMillis;
+    }
+
+    /**
+     * The profile named name, in any case.
+     *
+     * @throws IllegalArgumentException if there is no such profile.
+     */
+    public static PragmaProfile parse(String name) {
+        try {
+            return valueOf(name.toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("krusty.pragmas must be durable, balanced or fast, not " + name);
+        }
+    }
+
+    /**
+     * Sets the pragmas of this profile on config, with mmapSize and
+     * cacheSize in place of its own.
+     */
+    void apply(SQLiteConfig config, long mmapSize, int cacheSize) {
+        config.setJournalMode(SQLiteConfig.JournalMode.WAL);
+        config.setSynchronous(synchronous);
+        config.setTempStore(tempStore);
+        config.setPragma(SQLiteConfig.Pragma.MMAP_SIZE, Long.toString(mmapSize));
+        config.setCacheSize(cacheSize);
+    }
+
+    /**
+     * PRAGMA mmap_size, in bytes.
+     */
+    public long mmapSize() {
+        return mmapSize;
+    }
+
+    /**
+     * PRAGMA cache_size, in KiB as it is negative.
+     */
+    public int cacheSize() {
+        return cacheSize;
+    }
+
+    /**
+     * How often the WAL is checkpointed on a background thread, or 0
+     * to leave it to SQLite, which checkpoints in the commit that fills
+     * the WAL past 1000 pages.
+     */
+    public long checkpointMillis() {
+        return checkpointMillis;
+    }
+
+    @Override
+    public String toString() {
+        return name().toLowerCase(Locale.ROOT);
+    }
+}
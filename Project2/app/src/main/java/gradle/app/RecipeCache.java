@@ -0,0 +1,85 @@
+package gradle.app;
+
+import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * RecipeCache keeps the recipe of each cookie, as served by
+ * GET /cookies/:cookieName/recipe, so that recipe lookups don't need
+ * to query reciepts and wareHouse. Recipes rarely change once a
+ * cookie is added, so the whole cache is simply dropped whenever
+ * cookies or ingredients are written. The least recently used recipe
+ * is evicted when the cache is full.
+ */
+public class RecipeCache {
+    private final LinkedHashMap<String, List<Database.Reciepts>> recipes;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private long generation = 0;
+
+    public RecipeCache(int capacity) {
+        recipes = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, List<Database.Reciepts>> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /**
+     * Returns the cached recipe of cookie, or null if it has to be
+     * loaded. An empty list means the cookie is known not to exist.
+     */
+    public synchronized List<Database.Reciepts> get(String cookie) {
+        var recipe = recipes.get(cookie);
+        if (recipe != null) {
+            hits.increment();
+        } else {
+            misses.increment();
+        }
+        return recipe;
+    }
+
+    /**
+     * The current generation, to be taken before loading a recipe and
+     * handed to put().
+     */
+    public synchronized long generation() {
+        return generation;
+    }
+
+    /**
+     * Caches a loaded recipe, unless the cache was invalidated while
+     * it was being loaded.
+     */
+    public synchronized void put(String cookie, List<Database.Reciepts> recipe, long loadedAt) {
+        if (loadedAt == generation) {
+            recipes.put(cookie, List.copyOf(recipe));
+        }
+    }
+
+    /**
+     * Drops every cached recipe.
+     */
+    public synchronized void invalidate() {
+        generation++;
+        recipes.clear();
+    }
+
+    public synchronized int size() {
+        return recipes.size();
+    }
+
+    public long hits() {
+        return hits.sum();
+    }
+
+    public long misses() {
+        return misses.sum();
+    }
+
+    public double hitRate() {
+        long h = hits(), total = h + misses();
+        return total == 0 ? 0 : (double) h / total;
+    }
+}
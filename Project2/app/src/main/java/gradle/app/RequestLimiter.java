@@ -0,0 +1,101 @@
+package gradle.app;
+
+import spark.Route;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * RequestLimiter bounds how many requests are inside Database at once.
+ * A request takes a permit before its handler runs and hands it back
+ * when the handler returns. When no permit frees up within
+ * timeoutMillis, the request is answered with 503 and a Retry-After
+ * header instead of queueing for a connection, so a burst is turned
+ * away at the door rather than piling up in the pool and the write
+ * pipeline.
+ *
+ * Permits are handed out in arrival order, so a request is not
+ * overtaken by later ones while it waits.
+ */
+public class RequestLimiter {
+    private final Semaphore permits;
+    private final int maxInFlight;
+    private final long timeoutMillis;
+
+    private final LongAdder admitted = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder waitNanos = new LongAdder();
+    private final LongAccumulator maxWaitNanos = new LongAccumulator(Long::max, 0);
+
+    /**
+     * @param maxInFlight how many requests may run their handler at once.
+     * @param timeoutMillis how long a request may wait for a permit.
+     */
+    public RequestLimiter(int maxInFlight, long timeoutMillis) {
+        this.permits = new Semaphore(maxInFlight, true);
+        this.maxInFlight = maxInFlight;
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * Wraps route so that it runs only while holding a permit.
+     */
+    public Route guard(Route route) {
+        return (req, res) -> {
+            long start = System.nanoTime();
+            boolean acquired;
+            try {
+                acquired = permits.tryAcquire(timeoutMillis, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                acquired = false;
+            }
+            long waited = System.nanoTime() - start;
+            waitNanos.add(waited);
+            maxWaitNanos.accumulate(waited);
+
+            if (!acquired) {
+                rejected.increment();
+                res.status(503);
+                res.header("Retry-After", "1");
+                return "";
+            }
+
+            admitted.increment();
+            try {
+                return route.handle(req, res);
+            } finally {
+                permits.release();
+            }
+        };
+    }
+
+    public int maxInFlight() {
+        return maxInFlight;
+    }
+
+    public int inFlight() {
+        return maxInFlight - permits.availablePermits();
+    }
+
+    public int waiting() {
+        return permits.getQueueLength();
+    }
+
+    public long admitted() {
+        return admitted.sum();
+    }
+
+    public long rejected() {
+        return rejected.sum();
+    }
+
+    public long waitNanos() {
+        return waitNanos.sum();
+    }
+
+    public long maxWaitNanos() {
+        return maxWaitNanos.get();
+    }
+}
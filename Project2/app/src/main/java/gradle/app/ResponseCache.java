@@ -0,0 +1,241 @@
+package gradle.app;
+
+import spark.Request;
+import spark.Response;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * ResponseCache lets clients that poll the list endpoints do so
+ * without reaching the database. Each resource has a version, which
+ * every write that changes what its GET answers bumps once the write
+ * has committed. GETs carry the version as their ETag, and a request
+ * whose If-None-Match still names it is answered with 304 before any
+ * SQL runs. Otherwise, a body written for the same query string at the
+ * same version is written again as it is.
+ *
+ * The version is read before the database is, so a body is never
+ * older than the version it is kept under; at worst it is newer, and
+ * is then only served until the next bump. ETags also carry when this
+ * cache was made, so one handed out before a restart doesn't match
+ * after it.
+ *
+ * Bodies are kept for the most recently used query strings, up to
+ * maxEntries bodies and maxBytes in all.
+ */
+public class ResponseCache {
+
+    /**
+     * The resources with a version, one per list endpoint.
+     */
+    public enum Resource {
+        CUSTOMERS, INGREDIENTS, COOKIES, PALLETS
+    }
+
+    private final String epoch = Long.toString(System.currentTimeMillis(), 36);
+    private final AtomicLongArray versions = new AtomicLongArray(Resource.values().length);
+    private final LinkedHashMap<String, Body> bodies;
+    private final int maxEntryBytes;
+    private final long maxBytes;
+    private long bytes;
+
+    private final LongAdder notModified = new LongAdder();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * @param maxEntries how many bodies are kept at most.
+     * @param maxBytes how many bytes of bodies are kept at most.
+     */
+    public ResponseCache(int maxEntries, long maxBytes) {
+        this.maxBytes = maxBytes;
+        this.maxEntryBytes = (int) Math.min(Integer.MAX_VALUE, maxBytes / 4);
+        this.bodies = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Body> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Something resource answers with has changed, after the write
+     * that changed it has committed.
+     */
+    public void changed(Resource... resources) {
+        for (var resource : resources) {
+            versions.incrementAndGet(resource.ordinal());
+        }
+    }
+
+    /**
+     * Every resource has changed, when the tables have been emptied.
+     */
+    public void changedAll() {
+        changed(Resource.values());
+        synchronized (this) {
+            bodies.clear();
+            bytes = 0;
+        }
+    }
+
+    public long version(Resource resource) {
+        return versions.get(resource.ordinal());
+    }
+
+    /**
+     * Answers req from the cache if it can: with 304 if its
+     * If-None-Match names the current version of resource, or with the
+     * body kept for its query string at that version.
+     *
+     * @return null if req has been answered, otherwise the Miss to
+     *         write and keep the body with.
+     */
+    public Miss answer(Request req, Response res, Resource resource) throws IOException {
+        long version = version(resource);
+        var etag = etag(resource, version);
+        if (matches(req.headers("If-None-Match"), etag)) {
+            notModified.increment();
+            res.header("ETag", etag);
+            res.status(304);
+            return null;
+        }
+
+        var key = resource.ordinal() + "?" + Objects.toString(req.queryString(), "");
+        Body found;
+        synchronized (this) {
+            found = bodies.get(key);
+        }
+        if (found != null && found.version == version) {
+            hits.increment();
+            res.header("ETag", etag);
+            res.status(200);
+            JsonCodec.write(res, found.bytes);
+            return null;
+        }
+
+        misses.increment();
+        return new Miss(resource, key, version, etag);
+    }
+
+    private String etag(Resource resource, long version) {
+        return '"' + epoch + '-' + resource.ordinal() + '-' + version + '"';
+    }
+
+    /**
+     * Whether an If-None-Match header names etag, or is *.
+     */
+    private static boolean matches(String header, String etag) {
+        if (header == null) {
+            return false;
+        }
+        for (var tag : header.split(",")) {
+            tag = tag.trim();
+            if (tag.startsWith("W/")) {
+                tag = tag.substring(2);
+            }
+            if (tag.equals(etag) || tag.equals("*")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Keeps body under key, unless resource has changed since version
+     * and the body would never be served.
+     */
+    private synchronized void put(Resource resource, String key, long version, byte[] body) {
+        if (body.length > maxEntryBytes || version != version(resource)) {
+            return;
+        }
+        var old = bodies.put(key, new Body(version, body));
+        bytes += body.length - (old == null ? 0 : old.bytes.length);
+
+        var eldest = bodies.values().iterator();
+        while (bytes > maxBytes && eldest.hasNext()) {
+            bytes -= eldest.next().bytes.length;
+            eldest.remove();
+        }
+    }
+
+    public synchronized int size() {
+        return bodies.size();
+    }
+
+    public synchronized long bytes() {
+        return bytes;
+    }
+
+    public long notModified() {
+        return notModified.sum();
+    }
+
+    public long hits() {
+        return hits.sum();
+    }
+
+    public long misses() {
+        return misses.sum();
+    }
+
+    /**
+     * A request the cache couldn't answer. Its response is tagged with
+     * the version read before the database was, and its body is kept
+     * under that version.
+     */
+    public class Miss {
+        private final Resource resource;
+        private final String key;
+        private final long version;
+        private final String etag;
+
+        private Miss(Resource resource, String key, long version, String etag) {
+            this.resource = resource;
+            this.key = key;
+            this.version = version;
+            this.etag = etag;
+        }
+
+        /**
+         * Tags res with the version, for a response written elsewhere.
+         */
+        private void tag(Response res) {
+            res.header("ETag", etag);
+        }
+
+        /**
+         * Tags res with the version, writes body to it and keeps it.
+         */
+        public void write(Response res, JsonCodec.Body body) throws IOException {
+            var bytes = JsonCodec.encode(body);
+            tag(res);
+            JsonCodec.write(res, bytes);
+            put(resource, key, version, bytes);
+        }
+
+        /**
+         * Tags res with the version and streams body to it, keeping it
+         * if it turns out small enough.
+         */
+        public void stream(Response res, JsonCodec.Body body) throws IOException {
+            tag(res);
+            var bytes = JsonCodec.stream(res, body, maxEntryBytes);
+            if (bytes != null) {
+                put(resource, key, version, bytes);
+            }
+        }
+    }
+
+    private static class Body {
+        private final long version;
+        private final byte[] bytes;
+
+        Body(long version, byte[] bytes) {
+            this.version = version;
+            this.bytes = bytes;
+        }
+    }
+}
@@ -0,0 +1,211 @@
+package gradle.app;
+
+import java.sql.*;
+import java.util.*;
+
+/**
+ * SchemaMigrations brings the schema of an existing database up to
+ * date. Each migration has a version number, and the version of the
+ * last migration applied is kept in PRAGMA user_version, so every
+ * migration runs exactly once per database file.
+ *
+ * New migrations go at the end of the list, with the next version.
+ */
+public class SchemaMigrations {
+
+    private static final List<Migration> MIGRATIONS = List.of(
+        new Migration(1, "Indexes for filtering pallets by cookie and production date",
+            """
+            CREATE INDEX IF NOT EXISTS pallets_by_product
+            ON     pallets (productName, productionDate, palletId)
+            """,
+            """
+            CREATE INDEX IF NOT EXISTS pallets_by_date
+            ON     pallets (productionDate, palletId)
+            """),
+        new Migration(2, "Pallet counts per product, kept up to date by triggers",
+            """
+            CREATE TABLE IF NOT EXISTS palletCounts (
+                productName  TEXT,
+                pallets      INT NOT NULL DEFAULT 0,
+                PRIMARY KEY (productName)
+            )
+            """,
+            """
+            INSERT OR REPLACE INTO palletCounts (productName, pallets)
+            SELECT productName, (
+                       SELECT count(*)
+                       FROM   pallets
+                       WHERE  pallets.productName = products.productName)
+            FROM   products
+            """,
+            """
+            CREATE TRIGGER IF NOT EXISTS palletCounts_product_insert
+            AFTER INSERT ON products
+            BEGIN
+              INSERT OR IGNORE INTO palletCounts (productName, pallets)
+              VALUES (NEW.productName, 0);
+            END
+            """,
+            """
+            CREATE TRIGGER IF NOT EXISTS palletCounts_product_delete
+            AFTER DELETE ON products
+            BEGIN
+              DELETE FROM palletCounts
+              WHERE  productName = OLD.productName;
+            END
+            """,
+            """
+            CREATE TRIGGER IF NOT EXISTS palletCounts_pallet_insert
+            AFTER INSERT ON pallets
+            BEGIN
+              UPDATE palletCounts
+              SET    pallets = pallets + 1
+              WHERE  productName = NEW.productName;
+            END
+            """,
+            """
+            CREATE TRIGGER IF NOT EXISTS palletCounts_pallet_delete
+            AFTER DELETE ON pallets
+            BEGIN
+              UPDATE palletCounts
+              SET    pallets = pallets - 1
+              WHERE  productName = OLD.productName;
+            END
+            """,
+            """
+            CREATE TRIGGER IF NOT EXISTS palletCounts_pallet_update
+            AFTER UPDATE OF productName ON pallets
+            WHEN   OLD.productName IS NOT NEW.productName
+            BEGIN
+              UPDATE palletCounts
+              SET    pallets = pallets - 1
+              WHERE  productName = OLD.productName;
+              UPDATE palletCounts
+              SET    pallets = pallets + 1
+              WHERE  productName = NEW.productName;
+            END
+            """),
+        new Migration(3, "Blocked date ranges per product, and the pallets blocked before them",
+            """
+            CREATE TABLE IF NOT EXISTS blockedRanges (
+                productName  TEXT,
+                fromDate     DATE,
+                toDate       DATE,
+                lastPallet   INTEGER,
+                FOREIGN KEY (productName) REFERENCES products (productName)
+            )
+            """,
+            """
+            CREATE INDEX IF NOT EXISTS blockedRanges_by_product
+            ON     blockedRanges (productName)
+            """,
+            """
+            CREATE TABLE IF NOT EXISTS blockedPallets (
+                palletId        TEXT,
+                productName     TEXT,
+                productionDate  DATE,
+                PRIMARY KEY (palletId)
+            )
+            """,
+            """
+            CREATE INDEX IF NOT EXISTS blockedPallets_by_product
+            ON     blockedPallets (productName, productionDate)
+            """,
+            """
+            INSERT OR IGNORE INTO blockedPallets (palletId, productName, productionDate)
+            SELECT palletId, productName, productionDate
+            FROM   pallets
+            WHERE  isBlocked
+            """),
+        new Migration(4, "Index for finding the pallets of an order, and those without one",
+            """
+            CREATE INDEX IF NOT EXISTS pallets_by_order
+            ON     pallets (orderId, productName)
+            """)
+    );
+
+    /**
+     * The version a database has after all migrations.
+     */
+    public static int latestVersion() {
+        return MIGRATIONS.get(MIGRATIONS.size() - 1).version;
+    }
+
+    /**
+     * Applies every migration newer than the database's user_version,
+     * each in its own transaction.
+     *
+     * @param conn a connection that may write.
+     * @return the number of migrations applied.
+     */
+    public static int migrate(Connection conn) throws SQLException {
+        int current;
+        try (var s = conn.createStatement(); var rs = s.executeQuery("PRAGMA user_version")) {
+            current = rs.next() ? rs.getInt(1) : 0;
+        }
+
+        int applied = 0;
+        for (var migration : MIGRATIONS) {
+            if (migration.version <= current) {
+                continue;
+            }
+
+            conn.setAutoCommit(false);
+            try (var s = conn.createStatement()) {
+                for (var statement : migration.statements) {
+                    s.executeUpdate(statement);
+                }
+                s.executeUpdate("PRAGMA user_version = " + migration.version);
+                conn.commit();
+            } catch (SQLException e) {
+                conn.rollback();
+                throw new SQLException("Migration " + migration.version + " ("
+                    + migration.description + ") failed", e);
+            } finally {
+                conn.setAutoCommit(true);
+            }
+            applied++;
+        }
+        return applied;
+    }
+
+    /**
+     * Runs a SQL script, such as project1-schema.sql, one statement at
+     * a time. Comments are dropped, and statements end with a
+     * semicolon.
+     *
+     * @param conn
+     * @param script the text of the script.
+     */
+    public static void runScript(Connection conn, String script) throws SQLException {
+        var sql = new StringBuilder();
+        for (var line : script.split("\n")) {
+            int comment = line.indexOf("--");
+            sql.append(comment < 0 ? line : line.substring(0, comment)).append('\n');
+        }
+
+        try (var s = conn.createStatement()) {
+            for (var statement : sql.toString().split(";")) {
+                if (!statement.isBlank()) {
+                    s.executeUpdate(statement);
+                }
+            }
+        }
+    }
+
+    /**
+     * One versioned change to the schema.
+     */
+    private static class Migration {
+        private final int version;
+        private final String description;
+        private final String[] statements;
+
+        Migration(int version, String description, String... statements) {
+            this.version = version;
+            this.description = description;
+            this.statements = statements;
+        }
+    }
+}
@@ -0,0 +1,156 @@
+package gradle.app;
+
+import org.sqlite.SQLiteConnection;
+import java.io.IOException;
+import java.nio.file.*;
+import java.sql.*;
+import java.util.regex.Pattern;
+
+/**
+ * Snapshots replaces the contents of the database file as a whole,
+ * through SQLite's backup API on the write connection. A reset copies
+ * in a template, a database with the schema and no rows that is built
+ * when the database is opened, so it takes the same few milliseconds
+ * however much data there was, and leaves the file as small as the
+ * template. A named snapshot, saved earlier from the database, is
+ * copied in the same way to seed it with data.
+ *
+ * The file stays in WAL mode and keeps its connections, which see the
+ * new contents from their next statement on. Everything kept in
+ * memory about the tables has to be loaded again by the caller.
+ */
+public class Snapshots implements AutoCloseable {
+
+    /**
+     * Snapshot names become file names, so they are kept to these.
+     */
+    private static final Pattern NAME = Pattern.compile("[A-Za-z0-9_-]{1,64}");
+
+    private static final String SUFFIX = ".sqlite";
+
+    private final Path directory;
+    private Path template;
+
+    /**
+     * @param directory where named snapshots are kept.
+     */
+    public Snapshots(Path directory) {
+        this.directory = directory;
+    }
+
+    public static boolean isValidName(String name) {
+        return name != null && NAME.matcher(name).matches();
+    }
+
+    public boolean exists(String name) {
+        return Files.isRegularFile(path(name));
+    }
+
+    /**
+     * Builds the template from the schema of the database c is
+     * connected to: its tables, then its indexes and triggers, and its
+     * user_version, so no migration runs after a reset.
+     */
+    public void createTemplate(ConnectionPool.PooledConnection c) throws SQLException, IOException {
+        var query =
+            """
+            SELECT sql
+            FROM   sqlite_master
+            WHERE  sql IS NOT NULL AND name NOT LIKE 'sqlite_%'
+            ORDER BY type = 'table' DESC
+            """;
+
+        var file = Files.createTempFile("krusty-template", SUFFIX);
+        try (var conn = DriverManager.getConnection("jdbc:sqlite:" + file);
+             var s = conn.createStatement();
+             var q = c.createStatement();
+             var rs = q.executeQuery(query)) {
+            while (rs.next()) {
+                s.executeUpdate(rs.getString("sql"));
+            }
+            try (var version = q.executeQuery("PRAGMA user_version")) {
+                s.executeUpdate("PRAGMA user_version = " + (version.next() ? version.getInt(1) : 0));
+            }
+        } catch (SQLException e) {
+            Files.deleteIfExists(file);
+            throw e;
+        }
+
+        var old = template;
+        template = file;
+        if (old != null) {
+            Files.deleteIfExists(old);
+        }
+    }
+
+    /**
+     * Empties the database, by copying the template over it.
+     */
+    public void restoreTemplate(ConnectionPool.PooledConnection c) throws SQLException {
+        if (template == null) {
+            throw new SQLException("No template has been built");
+        }
+        restore(c, template);
+    }
+
+    /**
+     * Replaces the database with the snapshot name.
+     *
+     * @throws SQLException if there is no such snapshot, or it can't be
+     *         copied.
+     */
+    public void restore(ConnectionPool.PooledConnection c, String name) throws SQLException {
+        var file = path(name);
+        if (!Files.isRegularFile(file)) {
+            throw new SQLException("No such snapshot: " + name);
+        }
+        restore(c, file);
+    }
+
+    private static void restore(ConnectionPool.PooledConnection c, Path file) throws SQLException {
+        var db = c.connection().unwrap(SQLiteConnection.class).getDatabase();
+        int rc = db.restore("main", file.toString(), null);
+        if (rc != 0) {
+            throw new SQLException("Restoring " + file + " failed with " + rc);
+        }
+    }
+
+    /**
+     * Saves the database as the snapshot name, replacing any snapshot
+     * of that name only once the copy is complete.
+     */
+    public void save(ConnectionPool.PooledConnection c, String name) throws SQLException, IOException {
+        Files.createDirectories(directory);
+        var file = Files.createTempFile(directory, name, SUFFIX + ".tmp");
+        try {
+            var db = c.connection().unwrap(SQLiteConnection.class).getDatabase();
+            int rc = db.backup("main", file.toString(), null);
+            if (rc != 0) {
+                throw new SQLException("Saving snapshot " + name + " failed with " + rc);
+            }
+            Files.move(file, path(name), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    private Path path(String name) {
+        return directory.resolve(name + SUFFIX);
+    }
+
+    /**
+     * Deletes the template.
+     */
+    @Override
+    public void close() {
+        try {
+            if (template != null) {
+                Files.deleteIfExists(template);
+                template = null;
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
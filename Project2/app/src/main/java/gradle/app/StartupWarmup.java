@@ -0,0 +1,184 @@
+package gradle.app;
+
+import static spark.Spark.halt;
+
+import spark.Filter;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.*;
+
+/**
+ * StartupWarmup gets the server going before clients reach it, so the
+ * first of them aren't served by a cold JIT and empty caches. It reads
+ * the database file once, so the pages that mmap_size maps are in the
+ * page cache, and then sends the hot GET endpoints through the server
+ * itself. Each round misses the response cache, hits it and is
+ * answered with 304, so all three paths get compiled. The first rounds
+ * are each held to one read connection, so every connection has
+ * prepared its statements.
+ *
+ * Until it is done, gate() answers every request but its own with 503
+ * and Retry-After.
+ */
+public class StartupWarmup {
+    private static final String HEADER = "X-Krusty-Warmup";
+    private static final int READ_SIZE = 1024 * 1024;
+
+    private final String token = UUID.randomUUID().toString();
+    private final HttpClient client = HttpClient.newHttpClient();
+    private volatile boolean done;
+    private int rounds;
+    private long requests;
+
+    /**
+     * A filter that turns away everything but warm-up requests until
+     * the warm-up is done.
+     */
+    public Filter gate() {
+        return (req, res) -> {
+            if (!done && !token.equals(req.headers(HEADER))) {
+                res.header("Retry-After", "1");
+                halt(503);
+            }
+        };
+    }
+
+    /**
+     * Lets every request through from now on.
+     */
+    public void done() {
+        done = true;
+    }
+
+    /**
+     * Reads the first limit bytes of file, so the OS has them cached.
+     *
+     * @return the number of bytes read.
+     */
+    public static long readFile(Path file, long limit) throws IOException {
+        long read = 0;
+        var buffer = ByteBuffer.allocate(READ_SIZE);
+        try (var channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            while (read < limit) {
+                buffer.clear();
+                int n = channel.read(buffer);
+                if (n < 0) {
+                    break;
+                }
+                read += n;
+            }
+        }
+        return read;
+    }
+
+    /**
+     * Runs rounds of the hot endpoints against the server on port for
+     * millis, and at least one round per read connection of db.
+     */
+    public void run(int port, Database db, long millis) throws IOException, InterruptedException {
+        var base = "http://localhost:" + port;
+        var paths = new ArrayList<String>(List.of(
+            "/customers",
+            "/ingredients",
+            "/cookies",
+            "/pallets?limit=100",
+            "/pallets?after=" + LocalDate.now().minusDays(30)));
+        for (var cookie : cookies(get(base + "/cookies", null).body())) {
+            paths.add("/cookies/" + URLEncoder.encode(cookie, StandardCharsets.UTF_8).replace("+", "%20")
+                + "/recipe");
+        }
+
+        int readers = db.pool().readerCount();
+        long deadline = System.nanoTime() + millis * 1_000_000;
+        while (rounds < readers || System.nanoTime() < deadline) {
+            var held = new ArrayList<ConnectionPool.PooledConnection>();
+            try {
+                // Leaves one connection free for the round, a different
+                // one each round since they are handed out in turn.
+                if (rounds < readers) {
+                    for (int i = 1; i < readers; i++) {
+                        held.add(db.pool().read());
+                    }
+                }
+                round(base, db, paths);
+            } catch (SQLException e) {
+                throw new IOException(e);
+            } finally {
+                for (var c : held) {
+                    c.close();
+                }
+            }
+            rounds++;
+        }
+    }
+
+    private void round(String base, Database db, List<String> paths) throws IOException, InterruptedException {
+        db.responses().changedAll();
+        for (var path : paths) {
+            var first = get(base + path, null);
+            get(base + path, null);
+            var etag = first.headers().firstValue("ETag");
+            if (etag.isPresent()) {
+                get(base + path, etag.get());
+            }
+        }
+    }
+
+    private HttpResponse<String> get(String uri, String etag) throws IOException, InterruptedException {
+        var request = HttpRequest.newBuilder(URI.create(uri)).header(HEADER, token);
+        if (etag != null) {
+            request.header("If-None-Match", etag);
+        }
+        requests++;
+        return client.send(request.build(), HttpResponse.BodyHandlers.ofString());
+    }
+
+    /**
+     * The cookie names in the body of GET /cookies.
+     */
+    private static List<String> cookies(String body) {
+        return JsonCodec.read(body, in -> {
+            var names = new ArrayList<String>();
+            in.beginObject();
+            while (in.hasNext()) {
+                if (!in.nextName().equals("data")) {
+                    in.skipValue();
+                    continue;
+                }
+                in.beginArray();
+                while (in.hasNext()) {
+                    in.beginObject();
+                    while (in.hasNext()) {
+                        if (in.nextName().equals("name")) {
+                            names.add(in.nextString());
+                        } else {
+                            in.skipValue();
+                        }
+                    }
+                    in.endObject();
+                }
+                in.endArray();
+            }
+            in.endObject();
+            return names;
+        });
+    }
+
+    public int rounds() {
+        return rounds;
+    }
+
+    public long requests() {
+        return requests;
+    }
+}
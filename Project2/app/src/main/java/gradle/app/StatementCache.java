@@ -0,0 +1,114 @@
+package gradle.app;
+
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * StatementCache keeps the prepared statements of one connection,
+ * keyed by their SQL text, so that SQLite only parses and plans each
+ * query once per connection. The least recently used statement is
+ * closed when the cache grows past its capacity.
+ *
+ * Like the connection it belongs to, a cache is only used by one
+ * thread at a time.
+ */
+public class StatementCache {
+    private final Connection conn;
+    private final Stats stats;
+    private final LinkedHashMap<String, PreparedStatement> statements;
+
+    public StatementCache(Connection conn, int capacity, Stats stats) {
+        this.conn = conn;
+        this.stats = stats;
+        this.statements = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+                if (size() <= capacity) {
+                    return false;
+                }
+                stats.evictions.increment();
+                closeQuietly(eldest.getValue());
+                return true;
+            }
+        };
+    }
+
+    /**
+     * Returns a prepared statement for sql, with its parameters
+     * cleared. The statement belongs to the cache and must not be
+     * closed by the caller, but its result sets should be.
+     */
+    public PreparedStatement get(String sql) throws SQLException {
+        var ps = statements.get(sql);
+        if (ps != null) {
+            stats.hits.increment();
+            ps.clearParameters();
+            ps.clearBatch();
+            return ps;
+        }
+
+        long start = System.nanoTime();
+        ps = conn.prepareStatement(sql);
+        stats.misses.increment();
+        stats.prepareNanos.add(System.nanoTime() - start);
+        statements.put(sql, ps);
+        return ps;
+    }
+
+    /**
+     * Closes every cached statement.
+     */
+    public void clear() {
+        for (var ps : statements.values()) {
+            closeQuietly(ps);
+        }
+        statements.clear();
+    }
+
+    private static void closeQuietly(PreparedStatement ps) {
+        try {
+            ps.close();
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Hit and miss counters, shared by all caches in a pool.
+     */
+    public static class Stats {
+        private final LongAdder hits = new LongAdder();
+        private final LongAdder misses = new LongAdder();
+        private final LongAdder evictions = new LongAdder();
+        private final LongAdder prepareNanos = new LongAdder();
+
+        public long hits() {
+            return hits.sum();
+        }
+
+        public long misses() {
+            return misses.sum();
+        }
+
+        public long evictions() {
+            return evictions.sum();
+        }
+
+        /**
+         * Time spent preparing statements on misses.
+         */
+        public long prepareNanos() {
+            return prepareNanos.sum();
+        }
+
+        /**
+         * Estimated planning time saved by hits, based on the average
+         * time a miss took to prepare.
+         */
+        public long savedNanos() {
+            long m = misses();
+            return m == 0 ? 0 : hits() * (prepareNanos() / m);
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package gradle.app;
+
+import org.eclipse.jetty.util.component.AbstractLifeCycle;
+import org.eclipse.jetty.util.thread.ThreadPool;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * VirtualThreadPool is a Jetty thread pool that runs every job on a
+ * new virtual thread, so a request blocked in JDBC parks its virtual
+ * thread instead of holding one of a fixed number of workers. There
+ * are no idle threads and the pool is never low on threads; how many
+ * requests reach the database at once is bounded by RequestLimiter
+ * instead.
+ *
+ * Jetty's acceptor and selector jobs run here too. A selector blocked
+ * in select() pins its carrier thread, which the JDK makes up for by
+ * adding a carrier, so they cost about what they would on a platform
+ * pool.
+ */
+public class VirtualThreadPool extends AbstractLifeCycle implements ThreadPool {
+
+    private static final long STOP_TIMEOUT_MILLIS = 5000;
+
+    private final ExecutorService executor =
+        Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("http-", 0).factory());
+    private final AtomicInteger running = new AtomicInteger();
+
+    @Override
+    public void execute(Runnable job) {
+        running.incrementAndGet();
+        try {
+            executor.execute(() -> {
+                try {
+                    job.run();
+                } finally {
+                    running.decrementAndGet();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            running.decrementAndGet();
+            throw e;
+        }
+    }
+
+    /**
+     * Waits until the pool has stopped and its last job has finished.
+     */
+    @Override
+    public void join() throws InterruptedException {
+        executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * The number of jobs running, each on a thread of its own.
+     */
+    @Override
+    public int getThreads() {
+        return running.get();
+    }
+
+    @Override
+    public int getIdleThreads() {
+        return 0;
+    }
+
+    @Override
+    public boolean isLowOnThreads() {
+        return false;
+    }
+
+    @Override
+    protected void doStop() throws Exception {
+        executor.shutdown();
+        if (!executor.awaitTermination(STOP_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,177 @@
+package gradle.app;
+
+import java.sql.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * WalCheckpointer copies the WAL back into the database file on a
+ * background thread, every intervalMillis, with a connection of its
+ * own. The write connection only checkpoints by itself once the WAL
+ * has AUTOCHECKPOINT_FRAMES frames, as a backstop, so commits normally
+ * never wait for one.
+ *
+ * Checkpoints are PASSIVE: they copy what no reader still needs and
+ * never wait for readers or the writer, so the WAL can't be reset
+ * while reads run back to back, and keeps growing. Once it has
+ * TRUNCATE_FRAMES frames, a TRUNCATE checkpoint follows, which waits
+ * for the readers and the writer up to the busy timeout, copies
+ * everything and empties the file.
+ */
+public class WalCheckpointer implements AutoCloseable {
+    /**
+     * WAL frames, a page each, after which a TRUNCATE checkpoint runs.
+     */
+    static final int TRUNCATE_FRAMES = 10_000;
+
+    /**
+     * wal_autocheckpoint of the write connection, high enough that the
+     * background checkpoints get there first.
+     */
+    static final int AUTOCHECKPOINT_FRAMES = 2 * TRUNCATE_FRAMES;
+
+    private final Connection conn;
+    private final ScheduledExecutorService checkpointer;
+
+    private final LongAdder checkpoints = new LongAdder();
+    private final LongAdder truncations = new LongAdder();
+    private final LongAdder busy = new LongAdder();
+    private final LongAdder framesCheckpointed = new LongAdder();
+    private final LongAdder nanos = new LongAdder();
+    private final AtomicLong walFrames = new AtomicLong();
+
+    /**
+     * Frames of the current WAL checkpointed so far, which SQLite
+     * reports in total rather than per checkpoint.
+     */
+    private long checkpointedFrames;
+
+    private WalCheckpointer(Connection conn) {
+        this.conn = conn;
+        this.checkpointer = Executors.newSingleThreadScheduledExecutor(r -> {
+            var thread = new Thread(r, "wal-checkpointer");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Creates a checkpointer and schedules its checkpoints, once it is
+     * fully constructed.
+     *
+     * @param conn a writable connection to the file, closed with this.
+     * @param intervalMillis
+     */
+    public static WalCheckpointer start(Connection conn, long intervalMillis) {
+        var checkpointer = new WalCheckpointer(conn);
+        checkpointer.checkpointer.scheduleWithFixedDelay(checkpointer::checkpointQuietly,
+            intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+        return checkpointer;
+    }
+
+    /**
+     * Runs a checkpoint now, on the calling thread, and truncates the
+     * WAL if it has grown past TRUNCATE_FRAMES.
+     */
+    public synchronized void checkpoint() throws SQLException {
+        long start = System.nanoTime();
+        if (checkpoint("PASSIVE") >= TRUNCATE_FRAMES) {
+            checkpoint("TRUNCATE");
+            truncations.increment();
+        }
+        checkpoints.increment();
+        nanos.add(System.nanoTime() - start);
+    }
+
+    /**
+     * Runs one checkpoint in mode.
+     *
+     * @return the frames in the WAL after it.
+     */
+    private long checkpoint(String mode) throws SQLException {
+        try (var s = conn.createStatement();
+             var rs = s.executeQuery("PRAGMA wal_checkpoint(" + mode + ")")) {
+            if (!rs.next()) {
+                return 0;
+            }
+            boolean wasBusy = rs.getInt(1) != 0;
+            // Both are -1 if the file isn't in WAL mode.
+            long log = Math.max(0, rs.getLong(2));
+            long checkpointed = Math.max(0, rs.getLong(3));
+            if (wasBusy) {
+                busy.increment();
+            }
+            // A WAL that shrank was truncated or started over, and counts
+            // from zero again.
+            if (log < walFrames.getAndSet(log) || checkpointed < checkpointedFrames) {
+                checkpointedFrames = 0;
+            }
+            framesCheckpointed.add(checkpointed - checkpointedFrames);
+            checkpointedFrames = checkpointed;
+            return log;
+        }
+    }
+
+    private void checkpointQuietly() {
+        try {
+            checkpoint();
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public long checkpoints() {
+        return checkpoints.sum();
+    }
+
+    /**
+     * Checkpoints that followed a PASSIVE one to empty a large WAL.
+     */
+    public long truncations() {
+        return truncations.sum();
+    }
+
+    /**
+     * Checkpoints that couldn't get the checkpoint lock, or that gave
+     * up waiting for readers or the writer.
+     */
+    public long busy() {
+        return busy.sum();
+    }
+
+    /**
+     * Frames in the WAL at the last checkpoint.
+     */
+    public long walFrames() {
+        return walFrames.get();
+    }
+
+    public long framesCheckpointed() {
+        return framesCheckpointed.sum();
+    }
+
+    public long nanos() {
+        return nanos.sum();
+    }
+
+    /**
+     * Stops checkpointing and closes the connection.
+     */
+    @Override
+    public void close() {
+        checkpointer.shutdown();
+        try {
+            checkpointer.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            try {
+                conn.close();
+            } catch (SQLException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
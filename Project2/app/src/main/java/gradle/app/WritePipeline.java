@@ -0,0 +1,424 @@
+package gradle.app;
+
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * WritePipeline runs every write to the database on one writer thread.
+ * Endpoints hand it a write and wait for the result, while the writer
+ * takes all writes queued so far and runs them in one transaction, so
+ * that a burst of requests shares a single commit instead of paying
+ * for one sync each. A write's result is handed back only once the
+ * transaction holding it has committed.
+ *
+ * Each write runs inside a savepoint of its own. A write that throws,
+ * Errors included, is rolled back to its savepoint and fails alone,
+ * without taking the rest of the batch or the writer with it. A write that calls abort() is rolled
+ * back the same way but still returns its result, which is how
+ * endpoints undo a write they find can't be done, such as baking
+ * pallets without enough stock.
+ *
+ * A write queued with executeAlone() runs by itself instead, outside
+ * any transaction, between the writes queued before and after it. That
+ * is for writes that replace the database file as a whole.
+ */
+public class WritePipeline implements AutoCloseable {
+
+    /**
+     * How long the writer waits for work before checking whether it
+     * has been closed.
+     */
+    private static final long POLL_MILLIS = 100;
+
+    /**
+     * A write to run in the writer's transaction.
+     */
+    public interface Write<T> {
+        T apply(Transaction tx) throws SQLException;
+    }
+
+    private final ConnectionPool pool;
+    private final int maxBatch;
+    private final Metrics.Histogram batchTimes;
+    private final BlockingQueue<Op<?>> queue = new LinkedBlockingQueue<>();
+    private final Thread writer;
+
+    /**
+     * Held while queueing a write and while closing, so that no write
+     * is queued after close() has stopped taking them.
+     */
+    private final Object submitLock = new Object();
+    private volatile boolean running = true;
+
+    private final LongAdder batches = new LongAdder();
+    private final LongAdder writes = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private final LongAccumulator largestBatch = new LongAccumulator(Long::max, 0);
+
+    /**
+     * Starts the writer thread.
+     *
+     * @param pool
+     * @param maxBatch the largest number of writes in one transaction.
+     * @param batchTimes where the time of each transaction is recorded.
+     */
+    public WritePipeline(ConnectionPool pool, int maxBatch, Metrics.Histogram batchTimes) {
+        this.pool = pool;
+        this.maxBatch = maxBatch;
+        this.batchTimes = batchTimes;
+        this.writer = new Thread(this::run, "db-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Queues a write.
+     *
+     * @return a future that completes once the write has committed,
+     *         or fails with the write's exception.
+     */
+    public <T> CompletableFuture<T> submit(Write<T> write) {
+        return submit(new Op<T>(write, false));
+    }
+
+    private <T> CompletableFuture<T> submit(Op<T> op) {
+        synchronized (submitLock) {
+            if (running) {
+                queue.add(op);
+                return op.future;
+            }
+        }
+        op.future.completeExceptionally(new SQLException("The write pipeline is closed"));
+        return op.future;
+    }
+
+    /**
+     * Queues a write and waits until it has committed.
+     *
+     * @return the result of the write.
+     * @throws SQLException if the write or its commit failed.
+     */
+    public <T> T execute(Write<T> write) throws SQLException {
+        return await(submit(write));
+    }
+
+    /**
+     * Queues a write that runs alone on the write connection, outside a
+     * transaction, once the writes queued before it have committed, and
+     * waits until it has run. Its afterCommit actions run when it
+     * returns, still holding the connection, and its onRollback actions
+     * if it throws.
+     *
+     * @return the result of the write.
+     * @throws SQLException if the write failed.
+     */
+    public <T> T executeAlone(Write<T> write) throws SQLException {
+        return await(submit(new Op<T>(write, true)));
+    }
+
+    private static <T> T await(CompletableFuture<T> future) throws SQLException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted waiting for a write", e);
+        } catch (ExecutionException e) {
+            var cause = e.getCause();
+            if (cause instanceof SQLException) {
+                throw (SQLException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new SQLException(cause);
+        }
+    }
+
+    public long batches() {
+        return batches.sum();
+    }
+
+    public long writes() {
+        return writes.sum();
+    }
+
+    public long failures() {
+        return failures.sum();
+    }
+
+    public long largestBatch() {
+        return largestBatch.get();
+    }
+
+    public int queued() {
+        return queue.size();
+    }
+
+    /**
+     * Runs what is queued and stops the writer. Writes that arrive
+     * while it stops are failed.
+     */
+    @Override
+    public void close() {
+        synchronized (submitLock) {
+            running = false;
+        }
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        Op<?> op;
+        while ((op = queue.poll()) != null) {
+            op.failure = new SQLException("The write pipeline is closed");
+            op.complete();
+        }
+    }
+
+    private void run() {
+        var batch = new ArrayList<Op<?>>(maxBatch);
+        while (running || !queue.isEmpty()) {
+            Op<?> first;
+            try {
+                first = queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                continue;
+            }
+            if (first == null) {
+                continue;
+            }
+
+            batch.add(first);
+            queue.drainTo(batch, maxBatch - 1);
+
+            try {
+                // Writes that run alone split the batch.
+                int from = 0;
+                for (int i = 0; i < batch.size(); i++) {
+                    if (batch.get(i).alone) {
+                        if (from < i) {
+                            runBatch(batch.subList(from, i));
+                        }
+                        runAlone(batch.get(i));
+                        from = i + 1;
+                    }
+                }
+                if (from < batch.size()) {
+                    runBatch(batch.subList(from, batch.size()));
+                }
+            } catch (Throwable e) {
+                // Whatever got this far, the writer carries on and the
+                // writes still waiting hear about it.
+                e.printStackTrace();
+                for (var op : batch) {
+                    op.future.completeExceptionally(e);
+                }
+            }
+            batch.clear();
+        }
+    }
+
+    /**
+     * Runs a batch of writes in one transaction and hands out their
+     * results once it has committed.
+     */
+    private void runBatch(List<Op<?>> batch) {
+        batches.increment();
+        writes.add(batch.size());
+        largestBatch.accumulate(batch.size());
+
+        long start = System.nanoTime();
+        try (var c = pool.write()) {
+            c.begin();
+            var conn = c.connection();
+            for (var op : batch) {
+                var savepoint = conn.setSavepoint();
+                op.tx = new Transaction(c);
+                try {
+                    op.run();
+                    if (op.tx.aborted) {
+                        conn.rollback(savepoint);
+                        op.tx.rolledBack();
+                    }
+                } catch (Throwable e) {
+                    conn.rollback(savepoint);
+                    op.tx.rolledBack();
+                    op.failure = e;
+                }
+                conn.releaseSavepoint(savepoint);
+            }
+            c.commit();
+
+            // Still holding the write connection, so nothing else can
+            // write before the hooks have seen this commit.
+            for (var op : batch) {
+                if (op.failure == null && !op.tx.aborted) {
+                    op.tx.committed();
+                }
+            }
+        } catch (Throwable e) {
+            e.printStackTrace();
+            for (var op : batch) {
+                if (op.failure == null) {
+                    if (op.tx != null) {
+                        op.tx.rolledBack();
+                    }
+                    op.failure = e;
+                }
+            }
+        } finally {
+            batchTimes.since(start);
+        }
+
+        for (var op : batch) {
+            if (op.failure != null) {
+                failures.increment();
+            }
+            op.complete();
+        }
+    }
+
+    /**
+     * Runs a write by itself, without a transaction.
+     */
+    private void runAlone(Op<?> op) {
+        batches.increment();
+        writes.increment();
+
+        long start = System.nanoTime();
+        try (var c = pool.write()) {
+            op.tx = new Transaction(c);
+            try {
+                op.run();
+                op.tx.committed();
+            } catch (Throwable e) {
+                op.tx.rolledBack();
+                op.failure = e;
+            }
+        } catch (Throwable e) {
+            e.printStackTrace();
+            op.failure = e;
+        } finally {
+            batchTimes.since(start);
+        }
+
+        if (op.failure != null) {
+            failures.increment();
+        }
+        op.complete();
+    }
+
+    /**
+     * The transaction a write runs in.
+     */
+    public static class Transaction {
+        private final ConnectionPool.PooledConnection c;
+        private List<Runnable> afterCommit;
+        private List<Runnable> onRollback;
+        private boolean aborted;
+
+        Transaction(ConnectionPool.PooledConnection c) {
+            this.c = c;
+        }
+
+        public ConnectionPool.PooledConnection connection() {
+            return c;
+        }
+
+        /**
+         * Returns the write connection's cached prepared statement for
+         * sql.
+         */
+        public PreparedStatement prepare(String sql) throws SQLException {
+            return c.prepare(sql);
+        }
+
+        /**
+         * Rolls back this write, and only this write, when it returns.
+         */
+        public void abort() {
+            aborted = true;
+        }
+
+        /**
+         * Runs action once the write has committed, on the writer
+         * thread, before its result is handed back.
+         */
+        public void afterCommit(Runnable action) {
+            if (afterCommit == null) {
+                afterCommit = new ArrayList<>();
+            }
+            afterCommit.add(action);
+        }
+
+        /**
+         * Runs action if the write is rolled back, to undo anything it
+         * did outside the database. Actions run latest first, so each
+         * undoes its change on top of the state it was made in.
+         */
+        public void onRollback(Runnable action) {
+            if (onRollback == null) {
+                onRollback = new ArrayList<>();
+            }
+            onRollback.add(action);
+        }
+
+        void committed() {
+            run(afterCommit);
+        }
+
+        void rolledBack() {
+            if (onRollback != null) {
+                Collections.reverse(onRollback);
+            }
+            run(onRollback);
+            onRollback = null;
+        }
+
+        private static void run(List<Runnable> actions) {
+            if (actions == null) {
+                return;
+            }
+            for (var action : actions) {
+                try {
+                    action.run();
+                } catch (Throwable e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * A queued write and where its result goes.
+     */
+    private static class Op<T> {
+        private final Write<T> write;
+        private final boolean alone;
+        private final CompletableFuture<T> future = new CompletableFuture<>();
+        private Transaction tx;
+        private T result;
+        private Throwable failure;
+
+        Op(Write<T> write, boolean alone) {
+            this.write = write;
+            this.alone = alone;
+        }
+
+        void run() throws SQLException {
+            result = write.apply(tx);
+        }
+
+        void complete() {
+            if (failure != null) {
+                future.completeExceptionally(failure);
+            } else {
+                future.complete(result);
+            }
+        }
+    }
+}
@@ -0,0 +1,273 @@
+package gradle.app;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.*;
+import gradle.app.BlockedRanges.Range;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.sql.*;
+import java.util.*;
+import java.util.stream.Collectors;
+
+/**
+ * Adds and removes ranges the way block and unblock do, and checks the
+ * sorted, disjoint ranges that come out. Ranges are written as
+ * "from..to" with "*" for an open end, and "@n" after them if they only
+ * block up to pallet n.
+ *
+ * The tests in Counts block and unblock pallets on a scratch database,
+ * and check how many pallets each reports changed.
+ */
+class BlockedRangesTest {
+
+    private static final long ALL = Long.MAX_VALUE;
+
+    @Test
+    void addsDisjointRangesInOrder() {
+        var ranges = add(List.of(), range("2021-03-10", "2021-03-12"));
+        ranges = add(ranges, range("2021-03-01", "2021-03-02"));
+        assertEquals("2021-03-01..2021-03-02 2021-03-10..2021-03-12", show(ranges));
+    }
+
+    @Test
+    void mergesOverlappingAndNeighbouringRanges() {
+        var ranges = add(List.of(), range("2021-03-01", "2021-03-05"));
+        ranges = add(ranges, range("2021-03-04", "2021-03-08"));
+        assertEquals("2021-03-01..2021-03-08", show(ranges));
+
+        ranges = add(ranges, range("2021-03-09", "2021-03-10"));
+        assertEquals("2021-03-01..2021-03-10", show(ranges));
+    }
+
+    @Test
+    void addingAcrossRangesJoinsThem() {
+        var ranges = add(List.of(), range("2021-03-01", "2021-03-02"));
+        ranges = add(ranges, range("2021-03-05", "2021-03-06"));
+        ranges = add(ranges, range("2021-03-09", "2021-03-10"));
+        ranges = add(ranges, range("2021-03-02", "2021-03-09"));
+        assertEquals("2021-03-01..2021-03-10", show(ranges));
+    }
+
+    @Test
+    void openRangeSwallowsTheRangesItCovers() {
+        var ranges = add(List.of(), range("2021-03-01", "2021-03-02"));
+        ranges = add(ranges, range("2021-03-05", "2021-03-06"));
+        ranges = add(ranges, range("2021-03-04", null));
+        assertEquals("2021-03-01..2021-03-02 2021-03-04..*", show(ranges));
+
+        ranges = add(ranges, range(null, "2021-03-03"));
+        assertEquals("*..*", show(ranges));
+    }
+
+    @Test
+    void removingFromTheMiddleSplitsARange() {
+        var ranges = List.of(range("2021-03-01", "2021-03-10"));
+        ranges = remove(ranges, range("2021-03-04", "2021-03-06"));
+        assertEquals("2021-03-01..2021-03-03 2021-03-07..2021-03-10", show(ranges));
+    }
+
+    @Test
+    void removingAnEndShortensARange() {
+        var ranges = List.of(range("2021-03-01", "2021-03-10"));
+        assertEquals("2021-03-06..2021-03-10", show(remove(ranges, range(null, "2021-03-05"))));
+        assertEquals("2021-03-01..2021-03-05", show(remove(ranges, range("2021-03-06", null))));
+        assertEquals("", show(remove(ranges, range("2021-03-01", "2021-03-10"))));
+    }
+
+    @Test
+    void removingFromAnOpenRangeLeavesOpenEnds() {
+        var ranges = List.of(range(null, null));
+        ranges = remove(ranges, range("2021-03-04", "2021-03-06"));
+        assertEquals("*..2021-03-03 2021-03-07..*", show(ranges));
+
+        ranges = remove(ranges, range(null, "2021-03-01"));
+        assertEquals("2021-03-02..2021-03-03 2021-03-07..*", show(ranges));
+    }
+
+    @Test
+    void removingAcrossRangesKeepsWhatIsOutside() {
+        var ranges = List.of(range("2021-03-01", "2021-03-03"), range("2021-03-05", "2021-03-07"),
+            range("2021-03-09", "2021-03-11"));
+        ranges = remove(ranges, range("2021-03-02", "2021-03-10"));
+        assertEquals("2021-03-01..2021-03-01 2021-03-11..2021-03-11", show(ranges));
+    }
+
+    @Test
+    void removeKeepsTheLastPalletOfWhatIsLeft() {
+        var ranges = List.of(range("2021-03-01", "2021-03-10", 7));
+        ranges = remove(ranges, range("2021-03-04", "2021-03-06"));
+        assertEquals("2021-03-01..2021-03-03@7 2021-03-07..2021-03-10@7", show(ranges));
+    }
+
+    @Test
+    void overlapKeepsTheLargerLastPallet() {
+        var ranges = List.of(range("2021-03-01", "2021-03-10", 9));
+        ranges = add(ranges, range("2021-03-05", "2021-03-15", 4));
+        assertEquals("2021-03-01..2021-03-10@9 2021-03-11..2021-03-15@4", show(ranges));
+
+        ranges = add(ranges, range("2021-03-08", "2021-03-12", 12));
+        assertEquals("2021-03-01..2021-03-07@9 2021-03-08..2021-03-12@12 2021-03-13..2021-03-15@4",
+            show(ranges));
+    }
+
+    @Test
+    void neighboursMergeOnlyWithTheSameLastPallet() {
+        var ranges = List.of(range("2021-03-01", "2021-03-02", 3));
+        assertEquals("2021-03-01..2021-03-04@3",
+            show(add(ranges, range("2021-03-03", "2021-03-04", 3))));
+        assertEquals("2021-03-01..2021-03-02@3 2021-03-03..2021-03-04@5",
+            show(add(ranges, range("2021-03-03", "2021-03-04", 5))));
+    }
+
+    @Test
+    void blocksOnlyDatesInARangeUpToItsLastPallet() {
+        var ranges = List.of(range(null, "2021-03-02", 5), range("2021-03-05", "2021-03-06", 5),
+            range("2021-03-10", null));
+        assertTrue(BlockedRanges.blocks(ranges, "2020-01-01", 5));
+        assertTrue(BlockedRanges.blocks(ranges, "2021-03-05", 1));
+        assertTrue(BlockedRanges.blocks(ranges, "2021-03-06 23:59:59", 5));
+        assertTrue(BlockedRanges.blocks(ranges, "2099-12-31", 1_000_000));
+        assertFalse(BlockedRanges.blocks(ranges, "2021-03-05", 6));
+        assertFalse(BlockedRanges.blocks(ranges, "2021-03-03", 1));
+        assertFalse(BlockedRanges.blocks(ranges, "2021-03-09", 1));
+        assertFalse(BlockedRanges.blocks(ranges, null, 1));
+        assertFalse(BlockedRanges.blocks(List.of(), "2021-03-05", 1));
+    }
+
+    @Test
+    void betweenLeavesOutBothEnds() {
+        assertEquals("2021-03-02..2021-03-04", show(List.of(Range.between("2021-03-01", "2021-03-05"))));
+        assertEquals("2021-03-02..*", show(List.of(Range.between("2021-03-01", null))));
+        assertEquals("*..*", show(List.of(Range.between(null, null))));
+        assertNull(Range.between("2021-03-01", "2021-03-02"));
+        assertThrows(IllegalArgumentException.class, () -> Range.between("March", null));
+    }
+
+    @Nested
+    class Counts {
+        private static final String PRODUCT = "Tango";
+
+        private Path file;
+        private ConnectionPool pool;
+        private WritePipeline pipeline;
+        private final BlockedRanges blockedRanges = new BlockedRanges();
+
+        @BeforeEach
+        void open() throws SQLException, IOException {
+            file = Files.createTempFile("krusty-blocked", ".sqlite");
+            try (var conn = DriverManager.getConnection("jdbc:sqlite:" + file);
+                 var in = BlockedRangesTest.class.getResourceAsStream("/project1-schema.sql")) {
+                SchemaMigrations.runScript(conn, new String(in.readAllBytes(), StandardCharsets.UTF_8));
+                SchemaMigrations.migrate(conn);
+                try (var s = conn.createStatement()) {
+                    s.execute("INSERT INTO products (productName) VALUES ('" + PRODUCT + "'), ('Amneris')");
+                }
+            }
+            pool = ConnectionPool.open(file.toString(), 1, 1000, 16, PragmaProfile.FAST, 0, -2000);
+            pipeline = new WritePipeline(pool, 64, new Metrics.Histogram());
+        }
+
+        @AfterEach
+        void delete() throws IOException {
+            pipeline.close();
+            pool.close();
+            for (var suffix : List.of("", "-wal", "-shm")) {
+                Files.deleteIfExists(Path.of(file + suffix));
+            }
+        }
+
+        @Test
+        void blockCountsThePalletsItBlocks() throws SQLException {
+            bake(PRODUCT, "2021-03-01", 2);
+            bake(PRODUCT, "2021-03-02", 3);
+            bake("Amneris", "2021-03-02", 4);
+
+            assertEquals(3, block(range("2021-03-02", "2021-03-02")));
+            assertEquals(2, block(range(null, null)));
+            assertEquals(0, block(range("2021-03-01", "2021-03-02")));
+        }
+
+        @Test
+        void unblockCountsThePalletsItUnblocks() throws SQLException {
+            bake(PRODUCT, "2021-03-01", 2);
+            bake(PRODUCT, "2021-03-02", 3);
+            block(range(null, null));
+
+            assertEquals(2, unblock(range(null, "2021-03-01")));
+            assertEquals(0, unblock(range("2021-03-01", "2021-03-01")));
+            assertEquals(3, unblock(range(null, null)));
+        }
+
+        @Test
+        void palletsBakedAfterABlockAreNotCounted() throws SQLException {
+            bake(PRODUCT, "2021-03-01", 2);
+            block(range("2021-03-01", null));
+            bake(PRODUCT, "2021-03-01", 3);
+
+            assertEquals(3, block(range("2021-03-01", "2021-03-01")));
+            assertEquals(5, unblock(range(null, null)));
+        }
+
+        @Test
+        void palletsBlockedOneByOneAreCounted() throws SQLException {
+            bake(PRODUCT, "2021-03-01", 2);
+            try (var c = pool.write();
+                 var s = c.createStatement()) {
+                s.execute("INSERT INTO blockedPallets SELECT palletId, productName, productionDate"
+                    + " FROM pallets LIMIT 1");
+            }
+            try (var c = pool.write()) {
+                blockedRanges.load(c);
+            }
+
+            assertEquals(1, block(range(null, null)));
+            assertEquals(2, unblock(range("2021-03-01", "2021-03-01")));
+        }
+
+        private long block(Range range) throws SQLException {
+            return pipeline.execute(tx -> blockedRanges.block(tx, PRODUCT, range)).pallets();
+        }
+
+        private long unblock(Range range) throws SQLException {
+            return pipeline.execute(tx -> blockedRanges.unblock(tx, PRODUCT, range)).pallets();
+        }
+
+        private void bake(String product, String productionDate, int pallets) throws SQLException {
+            pipeline.execute(tx -> {
+                var ps = tx.prepare("INSERT INTO pallets (productName, productionDate) VALUES (?, ?)");
+                for (int i = 0; i < pallets; i++) {
+                    ps.setString(1, product);
+                    ps.setString(2, productionDate);
+                    ps.addBatch();
+                }
+                ps.executeBatch();
+                return null;
+            });
+        }
+    }
+
+    private static Range range(String from, String to) {
+        return new Range(from, to);
+    }
+
+    private static Range range(String from, String to, long lastPallet) {
+        return new Range(from, to, lastPallet);
+    }
+
+    private static List<Range> add(List<Range> ranges, Range range) {
+        return BlockedRanges.add(ranges, range);
+    }
+
+    private static List<Range> remove(List<Range> ranges, Range range) {
+        return BlockedRanges.remove(ranges, range);
+    }
+
+    private static String show(List<Range> ranges) {
+        return ranges.stream()
+            .map(r -> (r.from() == null ? "*" : r.from()) + ".." + (r.to() == null ? "*" : r.to())
+                + (r.lastPallet() == ALL ? "" : "@" + r.lastPallet()))
+            .collect(Collectors.joining(" "));
+    }
+}
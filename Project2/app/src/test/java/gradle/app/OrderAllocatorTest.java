@@ -0,0 +1,191 @@
+package gradle.app;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.*;
+import gradle.app.BlockedRanges.Range;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.sql.*;
+import java.util.*;
+
+/**
+ * Bakes pallets and places orders through an OrderAllocator on a
+ * scratch database built from project1-schema.sql and the schema
+ * migrations, and checks which pallets each order gets.
+ *
+ * Pallets are given palletIds that sort the other way round from the
+ * order they are baked in, so that only the pallet number orders them.
+ */
+class OrderAllocatorTest {
+
+    private static final String PRODUCT = "Tango";
+
+    private Path file;
+    private ConnectionPool pool;
+    private WritePipeline pipeline;
+    private BlockedRanges blockedRanges;
+    private OrderAllocator orders;
+
+    @BeforeEach
+    void open() throws SQLException, IOException {
+        file = Files.createTempFile("krusty-orders", ".sqlite");
+        try (var conn = DriverManager.getConnection("jdbc:sqlite:" + file);
+             var in = OrderAllocatorTest.class.getResourceAsStream("/project1-schema.sql")) {
+            SchemaMigrations.runScript(conn, new String(in.readAllBytes(), StandardCharsets.UTF_8));
+            SchemaMigrations.migrate(conn);
+            try (var s = conn.createStatement()) {
+                s.execute("INSERT INTO products (productName) VALUES ('" + PRODUCT + "')");
+            }
+        }
+        pool = ConnectionPool.open(file.toString(), 1, 1000, 16, PragmaProfile.FAST, 0, -2000);
+        pipeline = new WritePipeline(pool, 64, new Metrics.Histogram());
+        blockedRanges = new BlockedRanges();
+        orders = new OrderAllocator(blockedRanges);
+    }
+
+    @AfterEach
+    void delete() throws IOException {
+        pipeline.close();
+        pool.close();
+        for (var suffix : List.of("", "-wal", "-shm")) {
+            Files.deleteIfExists(Path.of(file + suffix));
+        }
+    }
+
+    @Test
+    void allocatesPalletsInTheOrderTheyWereBaked() throws SQLException {
+        bake("2021-03-02", "z");
+        bake("2021-03-02", "y", "x");
+        bake("2021-03-01", "w");
+
+        int first = order(3);
+        int second = order(1);
+        assertEquals(List.of("z", "y", "x"), allocatedTo(first));
+        assertEquals(List.of("w"), allocatedTo(second));
+        assertEquals(0, orders.availablePallets());
+        assertEquals(0, orders.openLines());
+        assertEquals(4, orders.allocated());
+    }
+
+    @Test
+    void waitingLinesAreFilledInTheOrderTheyWerePlaced() throws SQLException {
+        int first = order(2);
+        int second = order(1);
+        assertEquals(2, orders.openLines());
+
+        bake("2021-03-01", "z", "y");
+        assertEquals(List.of("z", "y"), allocatedTo(first));
+        assertEquals(List.of(), allocatedTo(second));
+        assertEquals(1, orders.openLines());
+
+        bake("2021-03-02", "x", "w");
+        assertEquals(List.of("x"), allocatedTo(second));
+        assertEquals(0, orders.openLines());
+        assertEquals(1, orders.availablePallets());
+    }
+
+    @Test
+    void rolledBackOrderLeavesThePalletsFree() throws SQLException {
+        bake("2021-03-01", "z", "y");
+
+        assertThrows(SQLException.class, () -> pipeline.execute(tx -> {
+            orders.placed(tx, orders.nextOrderId(), Map.of(PRODUCT, 2));
+            throw new SQLException("No");
+        }));
+        assertEquals(2, orders.availablePallets());
+        assertEquals(0, orders.openLines());
+        assertEquals(0, orders.allocated());
+
+        int order = order(2);
+        assertEquals(List.of("z", "y"), allocatedTo(order));
+    }
+
+    @Test
+    void rolledBackBakeLeavesTheLinesOpen() throws SQLException {
+        int order = order(1);
+
+        assertThrows(SQLException.class, () -> pipeline.execute(tx -> {
+            bake(tx, "2021-03-01", "z");
+            throw new SQLException("No");
+        }));
+        assertEquals(0, orders.availablePallets());
+        assertEquals(1, orders.openLines());
+
+        bake("2021-03-01", "y");
+        assertEquals(List.of("y"), allocatedTo(order));
+    }
+
+    @Test
+    void blockedPalletsWaitUntilUnblocked() throws SQLException {
+        bake("2021-03-01", "z");
+        bake("2021-03-02", "y");
+        pipeline.execute(tx -> blockedRanges.block(tx, PRODUCT, new Range("2021-03-01", "2021-03-01")));
+
+        int order = order(2);
+        assertEquals(List.of("y"), allocatedTo(order));
+        assertEquals(1, orders.openLines());
+
+        pipeline.execute(tx -> {
+            blockedRanges.unblock(tx, PRODUCT, new Range(null, null));
+            orders.unblocked(tx, PRODUCT);
+            return null;
+        });
+        assertEquals(List.of("z", "y"), allocatedTo(order));
+        assertEquals(0, orders.openLines());
+    }
+
+    @Test
+    void blockingLeavesLaterPalletsFree() throws SQLException {
+        bake("2021-03-01", "z");
+        pipeline.execute(tx -> blockedRanges.block(tx, PRODUCT, new Range("2021-03-01", null)));
+        bake("2021-03-01", "y");
+
+        int order = order(1);
+        assertEquals(List.of("y"), allocatedTo(order));
+    }
+
+    private void bake(String productionDate, String... ids) throws SQLException {
+        pipeline.execute(tx -> {
+            bake(tx, productionDate, ids);
+            return null;
+        });
+    }
+
+    private void bake(WritePipeline.Transaction tx, String productionDate, String... ids)
+            throws SQLException {
+        long firstNumber = BlockedRanges.lastPallet(tx) + 1;
+        var ps = tx.prepare("INSERT INTO pallets (palletId, productName, productionDate) VALUES (?, ?, ?)");
+        for (var id : ids) {
+            ps.setString(1, id);
+            ps.setString(2, PRODUCT);
+            ps.setString(3, productionDate);
+            ps.addBatch();
+        }
+        ps.executeBatch();
+        orders.baked(tx, PRODUCT, productionDate, List.of(ids), firstNumber);
+    }
+
+    private int order(int pallets) throws SQLException {
+        return pipeline.execute(tx -> {
+            int orderId = orders.nextOrderId();
+            orders.placed(tx, orderId, Map.of(PRODUCT, pallets));
+            return orderId;
+        });
+    }
+
+    private List<String> allocatedTo(int orderId) throws SQLException {
+        var ids = new ArrayList<String>();
+        try (var c = pool.read()) {
+            var ps = c.prepare("SELECT palletId FROM pallets WHERE orderId = ? ORDER BY rowid");
+            ps.setInt(1, orderId);
+            try (var rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    ids.add(rs.getString("palletId"));
+                }
+            }
+        }
+        return ids;
+    }
+}
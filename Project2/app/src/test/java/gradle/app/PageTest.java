@@ -0,0 +1,55 @@
+package gradle.app;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.*;
+
+/**
+ * Encodes cursors with Page.cursor and reads them back with Page.of,
+ * as a client following next links would.
+ */
+class PageTest {
+
+    @Test
+    void cursorRoundTrips() {
+        var page = Page.of("10", Page.cursor("2021-03-01", "abc"), 2);
+        assertEquals(10, page.limit());
+        assertArrayEquals(new String[] {"2021-03-01", "abc"}, page.after());
+    }
+
+    @Test
+    void nullPartRoundTripsAsNull() {
+        var page = Page.of(null, Page.cursor(null, "abc"), 2);
+        assertEquals(Page.DEFAULT_LIMIT, page.limit());
+        assertArrayEquals(new String[] {null, "abc"}, page.after());
+    }
+
+    @Test
+    void emptyPartStaysEmpty() {
+        var page = Page.of(null, Page.cursor("", "abc"), 2);
+        assertArrayEquals(new String[] {"", "abc"}, page.after());
+    }
+
+    @Test
+    void notPaginatedWithoutParameters() {
+        assertNull(Page.of(null, null, 1));
+    }
+
+    @Test
+    void firstPageHasNoCursor() {
+        assertNull(Page.of("5", null, 1).after());
+    }
+
+    @Test
+    void rejectsBadLimits() {
+        for (var limit : new String[] {"0", "-1", "x", Integer.toString(Page.MAX_LIMIT + 1)}) {
+            assertThrows(IllegalArgumentException.class, () -> Page.of(limit, null, 1), limit);
+        }
+    }
+
+    @Test
+    void rejectsBadCursors() {
+        assertThrows(IllegalArgumentException.class, () -> Page.of(null, "not base64!", 1));
+        assertThrows(IllegalArgumentException.class, () -> Page.of(null, Page.cursor("a", "b"), 1));
+    }
+}
@@ -0,0 +1,145 @@
+package gradle.app;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.*;
+import java.io.IOException;
+import java.lang.reflect.Modifier;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.sql.*;
+import java.util.*;
+import java.util.stream.Stream;
+
+/**
+ * Runs EXPLAIN QUERY PLAN for every statement the server runs, against
+ * an empty database built from project1-schema.sql and the schema
+ * migrations, and fails if one reads a whole table where it should use
+ * an index.
+ *
+ * The statements are the SQL constants of the classes below, found by
+ * reflection, so a changed or added constant is checked as it is, and
+ * the queries Database builds from optional filters in every
+ * combination. Statements that list a whole table on purpose are marked
+ * as allowed to scan it.
+ */
+class QueryPlanTest {
+
+    private static final List<Class<?>> CLASSES = List.of(Database.class, OrderAllocator.class,
+        BlockedRanges.class, Inventory.class, DeliveryAggregator.class);
+
+    /**
+     * The table each statement may scan, by name. A new product is
+     * looked up in orders, which has no index on productName, only while
+     * a foreign key violation is pending.
+     */
+    private static final Map<String, String> MAY_SCAN = Map.of(
+        "Database.INSERT_PRODUCT", "orders",
+        "Database.SELECT_CUSTOMERS", "customers",
+        "Database.SELECT_PALLET_COUNTS", "palletCounts",
+        "Database.SELECT_PALLETS", "pallets",
+        "Database.selectCustomers", "customers",
+        "Database.selectPallets", "pallets",
+        "Inventory.SELECT_STOCK", "wareHouse",
+        "BlockedRanges.SELECT_ALL", "blockedRanges",
+        "OrderAllocator.SELECT_OPEN_LINES", "orderStatus");
+
+    private static Path file;
+    private static Connection conn;
+
+    @BeforeAll
+    static void createDatabase() throws SQLException, IOException {
+        file = Files.createTempFile("krusty-plan", ".sqlite");
+        conn = DriverManager.getConnection("jdbc:sqlite:" + file);
+        try (var in = QueryPlanTest.class.getResourceAsStream("/project1-schema.sql")) {
+            SchemaMigrations.runScript(conn, new String(in.readAllBytes(), StandardCharsets.UTF_8));
+        }
+        SchemaMigrations.migrate(conn);
+    }
+
+    @AfterAll
+    static void deleteDatabase() throws SQLException, IOException {
+        conn.close();
+        Files.deleteIfExists(file);
+    }
+
+    @TestFactory
+    Stream<DynamicTest> queryPlans() throws IllegalAccessException {
+        var queries = new LinkedHashMap<String, String>();
+        for (var c : CLASSES) {
+            for (var field : c.getDeclaredFields()) {
+                int modifiers = field.getModifiers();
+                if (field.getType() == String.class && Modifier.isStatic(modifiers)
+                        && Modifier.isFinal(modifiers)) {
+                    field.setAccessible(true);
+                    var sql = (String) field.get(null);
+                    if (isStatement(sql)) {
+                        queries.put(c.getSimpleName() + "." + field.getName(), sql);
+                    }
+                }
+            }
+        }
+        assertTrue(queries.size() >= 20, "Found only " + queries.keySet());
+
+        for (boolean afterCursor : new boolean[] {false, true}) {
+            queries.put("Database.selectCustomers page" + (afterCursor ? " after" : ""),
+                Database.selectCustomers(true, afterCursor));
+        }
+        for (int filters = 0; filters < 8; filters++) {
+            boolean cookie = (filters & 1) != 0, after = (filters & 2) != 0, before = (filters & 4) != 0;
+            var name = "Database.selectPallets filters " + filters;
+            queries.put(name, Database.selectPallets(cookie, after, before, false, false, false));
+            queries.put(name + " page", Database.selectPallets(cookie, after, before, true, false, false));
+            queries.put(name + " page after",
+                Database.selectPallets(cookie, after, before, true, true, false));
+            queries.put(name + " page after undated",
+                Database.selectPallets(cookie, after, before, true, true, true));
+        }
+        for (int bounds = 0; bounds < 4; bounds++) {
+            boolean from = (bounds & 1) != 0, to = (bounds & 2) != 0;
+            queries.put("BlockedRanges.inRange SELECT_BLOCKED_PALLETS bounds " + bounds,
+                BlockedRanges.inRange(BlockedRanges.SELECT_BLOCKED_PALLETS, from, to));
+            queries.put("BlockedRanges.inRange SELECT_PALLETS bounds " + bounds,
+                BlockedRanges.inRange(BlockedRanges.SELECT_PALLETS, from, to));
+        }
+
+        return queries.entrySet().stream()
+            .map(query -> DynamicTest.dynamicTest(query.getKey(), () -> check(query.getKey(), query.getValue())));
+    }
+
+    private static boolean isStatement(String sql) {
+        var head = sql.strip().split("\\s+", 2)[0];
+        return List.of("SELECT", "INSERT", "UPDATE", "DELETE").contains(head);
+    }
+
+    private static void check(String name, String sql) throws SQLException {
+        var plan = new ArrayList<String>();
+        try (var ps = conn.prepareStatement("EXPLAIN QUERY PLAN " + sql);
+             var rs = ps.executeQuery()) {
+            while (rs.next()) {
+                plan.add(rs.getString("detail"));
+            }
+        }
+
+        // Only the unfiltered, unpaged variants of the built queries may scan.
+        var mayScan = MAY_SCAN.get(name.contains(" ") ? name.substring(0, name.indexOf(' ')) : name);
+        if (name.contains(" ") && !name.endsWith("filters 0")) {
+            mayScan = null;
+        }
+        for (var step : plan) {
+            if (isTableScan(step)) {
+                assertTrue(mayScan != null && step.matches("SCAN (TABLE )?" + mayScan + "( .*)?"),
+                    name + " scans a table: " + String.join("; ", plan));
+            }
+        }
+    }
+
+    /**
+     * A full scan reads the table itself. Scans of an index, of a
+     * materialized subquery or of a constant row are fine.
+     */
+    private static boolean isTableScan(String step) {
+        return step.startsWith("SCAN ") && !step.contains(" INDEX ")
+            && !step.startsWith("SCAN SUBQUERY") && !step.startsWith("SCAN CONSTANT ROW");
+    }
+}
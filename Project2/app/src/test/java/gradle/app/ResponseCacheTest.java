@@ -0,0 +1,241 @@
+package gradle.app;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.*;
+import gradle.app.ResponseCache.Resource;
+import spark.Request;
+import spark.Response;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Sends GETs through a ResponseCache the way the list endpoints do, and
+ * checks which are answered with 304, which with a kept body and which
+ * reach the database, before and after the resource changes.
+ */
+class ResponseCacheTest {
+
+    private ResponseCache cache;
+
+    @BeforeEach
+    void create() {
+        cache = new ResponseCache(16, 1024);
+    }
+
+    @Test
+    void keptBodyIsServedAgain() throws IOException {
+        var first = new Get(null, null);
+        var miss = cache.answer(first.req, first.res, Resource.CUSTOMERS);
+        assertNotNull(miss);
+        miss.write(first.res, body("one"));
+
+        var second = new Get(null, null);
+        assertNull(cache.answer(second.req, second.res, Resource.CUSTOMERS));
+        assertEquals(200, second.res.status());
+        assertEquals(first.body(), second.body());
+        assertEquals(first.headers.get("ETag"), second.headers.get("ETag"));
+        assertEquals(1, cache.hits());
+        assertEquals(1, cache.misses());
+    }
+
+    @Test
+    void bodiesAreKeptPerQueryString() throws IOException {
+        var all = new Get(null, null);
+        cache.answer(all.req, all.res, Resource.CUSTOMERS).write(all.res, body("all"));
+
+        var page = new Get("limit=1", null);
+        assertNotNull(cache.answer(page.req, page.res, Resource.CUSTOMERS));
+        var other = new Get(null, null);
+        assertNotNull(cache.answer(other.req, other.res, Resource.PALLETS));
+    }
+
+    @Test
+    void matchingETagIsNotModified() throws IOException {
+        var first = new Get(null, null);
+        cache.answer(first.req, first.res, Resource.PALLETS).write(first.res, body("one"));
+        var etag = first.headers.get("ETag");
+
+        for (var header : List.of(etag, "W/" + etag, "\"other\", " + etag, "*")) {
+            var get = new Get(null, header);
+            assertNull(cache.answer(get.req, get.res, Resource.PALLETS), header);
+            assertEquals(304, get.res.status(), header);
+            assertEquals(etag, get.headers.get("ETag"), header);
+            assertEquals("", get.body(), header);
+        }
+        assertEquals(4, cache.notModified());
+
+        var stale = new Get(null, "\"other\"");
+        assertNull(cache.answer(stale.req, stale.res, Resource.PALLETS));
+        assertEquals(200, stale.res.status());
+    }
+
+    @Test
+    void changeInvalidatesOnlyItsResource() throws IOException {
+        var pallets = new Get(null, null);
+        cache.answer(pallets.req, pallets.res, Resource.PALLETS).write(pallets.res, body("pallets"));
+        var cookies = new Get(null, null);
+        cache.answer(cookies.req, cookies.res, Resource.COOKIES).write(cookies.res, body("cookies"));
+
+        cache.changed(Resource.PALLETS);
+
+        var again = new Get(null, pallets.headers.get("ETag"));
+        assertNotNull(cache.answer(again.req, again.res, Resource.PALLETS));
+        var other = new Get(null, cookies.headers.get("ETag"));
+        assertNull(cache.answer(other.req, other.res, Resource.COOKIES));
+        assertEquals(304, other.res.status());
+    }
+
+    @Test
+    void bodyReadBeforeAChangeIsNotKept() throws IOException {
+        var get = new Get(null, null);
+        var miss = cache.answer(get.req, get.res, Resource.INGREDIENTS);
+        cache.changed(Resource.INGREDIENTS);
+        miss.write(get.res, body("old"));
+        assertEquals(0, cache.size());
+
+        var again = new Get(null, get.headers.get("ETag"));
+        assertNotNull(cache.answer(again.req, again.res, Resource.INGREDIENTS));
+    }
+
+    @Test
+    void changedAllForgetsEverything() throws IOException {
+        for (var resource : Resource.values()) {
+            var get = new Get(null, null);
+            cache.answer(get.req, get.res, resource).write(get.res, body(resource.name()));
+        }
+        assertEquals(Resource.values().length, cache.size());
+
+        cache.changedAll();
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.bytes());
+        for (var resource : Resource.values()) {
+            assertEquals(1, cache.version(resource));
+        }
+    }
+
+    @Test
+    void leastRecentlyUsedBodiesGoFirst() throws IOException {
+        cache = new ResponseCache(2, 1024);
+        for (var query : List.of("a=1", "a=2")) {
+            var get = new Get(query, null);
+            cache.answer(get.req, get.res, Resource.CUSTOMERS).write(get.res, body(query));
+        }
+        var used = new Get("a=1", null);
+        assertNull(cache.answer(used.req, used.res, Resource.CUSTOMERS));
+
+        var third = new Get("a=3", null);
+        cache.answer(third.req, third.res, Resource.CUSTOMERS).write(third.res, body("a=3"));
+        assertEquals(2, cache.size());
+
+        var evicted = new Get("a=2", null);
+        assertNotNull(cache.answer(evicted.req, evicted.res, Resource.CUSTOMERS));
+        var kept = new Get("a=1", null);
+        assertNull(cache.answer(kept.req, kept.res, Resource.CUSTOMERS));
+    }
+
+    @Test
+    void bodiesStayWithinMaxBytes() throws IOException {
+        cache = new ResponseCache(16, 200);
+        var large = new Get(null, null);
+        cache.answer(large.req, large.res, Resource.CUSTOMERS).write(large.res, body("x".repeat(100)));
+        assertEquals(0, cache.size());
+
+        for (int i = 0; i < 10; i++) {
+            var get = new Get("page=" + i, null);
+            cache.answer(get.req, get.res, Resource.CUSTOMERS).write(get.res, body("x".repeat(20)));
+        }
+        assertTrue(cache.bytes() <= 200, "Kept " + cache.bytes() + " bytes");
+        assertTrue(cache.size() < 10);
+    }
+
+    private static JsonCodec.Body body(String value) {
+        return out -> {
+            out.beginObject();
+            out.name("data").value(value);
+            out.endObject();
+        };
+    }
+
+    /**
+     * A GET with a query string and an If-None-Match header, either of
+     * which may be null, and the response it got.
+     */
+    private static class Get {
+        private final Map<String, String> headers = new HashMap<>();
+        private final ByteArrayOutputStream written = new ByteArrayOutputStream();
+        private final Request req;
+        private final Response res;
+
+        Get(String queryString, String ifNoneMatch) {
+            req = new Request() {
+                @Override
+                public String queryString() {
+                    return queryString;
+                }
+
+                @Override
+                public String headers(String header) {
+                    return header.equals("If-None-Match") ? ifNoneMatch : null;
+                }
+            };
+
+            var out = new ServletOutputStream() {
+                @Override
+                public void write(int b) {
+                    written.write(b);
+                }
+
+                @Override
+                public boolean isReady() {
+                    return true;
+                }
+
+                @Override
+                public void setWriteListener(WriteListener listener) {
+                }
+            };
+            var raw = (HttpServletResponse) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class<?>[] {HttpServletResponse.class},
+                (proxy, method, args) -> method.getName().equals("getOutputStream") ? out : null);
+
+            res = new Response() {
+                private int status = 200;
+
+                @Override
+                public void status(int status) {
+                    this.status = status;
+                }
+
+                @Override
+                public int status() {
+                    return status;
+                }
+
+                @Override
+                public void header(String header, String value) {
+                    headers.put(header, value);
+                }
+
+                @Override
+                public void type(String contentType) {
+                }
+
+                @Override
+                public HttpServletResponse raw() {
+                    return raw;
+                }
+            };
+        }
+
+        String body() {
+            return written.toString(StandardCharsets.UTF_8);
+        }
+    }
+}
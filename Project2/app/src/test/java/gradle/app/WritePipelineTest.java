@@ -0,0 +1,207 @@
+package gradle.app;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import org.junit.jupiter.api.*;
+import java.io.IOException;
+import java.nio.file.*;
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Runs writes through a WritePipeline on a scratch database with one
+ * table, t, and checks what each write and its hooks leave behind.
+ *
+ * Writes meant to share a batch are queued while the writer is held up
+ * by a write that waits for them, so the writer takes them all at once
+ * when it is let go.
+ */
+class WritePipelineTest {
+
+    private Path file;
+    private ConnectionPool pool;
+    private WritePipeline pipeline;
+
+    @BeforeEach
+    void open() throws SQLException, IOException {
+        file = Files.createTempFile("krusty-pipeline", ".sqlite");
+        try (var conn = DriverManager.getConnection("jdbc:sqlite:" + file);
+             var s = conn.createStatement()) {
+            s.execute("CREATE TABLE t (x INTEGER)");
+        }
+        pool = ConnectionPool.open(file.toString(), 1, 1000, 16, PragmaProfile.FAST, 0, -2000);
+        pipeline = new WritePipeline(pool, 64, new Metrics.Histogram());
+    }
+
+    @AfterEach
+    void delete() throws IOException {
+        pipeline.close();
+        pool.close();
+        for (var suffix : List.of("", "-wal", "-shm")) {
+            Files.deleteIfExists(Path.of(file + suffix));
+        }
+    }
+
+    @Test
+    void failedWriteRollsBackAloneInItsBatch() throws Exception {
+        var futures = inOneBatch(
+            tx -> insert(tx, 1),
+            tx -> {
+                insert(tx, 2);
+                throw new SQLException("No");
+            },
+            tx -> insert(tx, 3));
+
+        assertEquals(1, futures.get(0).get());
+        var failure = assertThrows(ExecutionException.class, () -> futures.get(1).get());
+        assertEquals("No", failure.getCause().getMessage());
+        assertEquals(3, futures.get(2).get());
+        assertEquals(List.of(1, 3), rows());
+        assertEquals(3, pipeline.largestBatch());
+        assertEquals(1, pipeline.failures());
+    }
+
+    @Test
+    void abortedWriteRollsBackButReturns() throws Exception {
+        var futures = inOneBatch(
+            tx -> insert(tx, 1),
+            tx -> {
+                insert(tx, 2);
+                tx.abort();
+                return -2;
+            });
+
+        assertEquals(1, futures.get(0).get());
+        assertEquals(-2, futures.get(1).get());
+        assertEquals(List.of(1), rows());
+        assertEquals(0, pipeline.failures());
+    }
+
+    @Test
+    void hooksRunForTheirOwnWriteOnly() throws Exception {
+        var events = Collections.synchronizedList(new ArrayList<String>());
+        var futures = inOneBatch(
+            tx -> {
+                tx.afterCommit(() -> events.add("committed 1"));
+                tx.onRollback(() -> events.add("rolled back 1"));
+                return insert(tx, 1);
+            },
+            tx -> {
+                tx.afterCommit(() -> events.add("committed 2"));
+                tx.onRollback(() -> events.add("undo 2a"));
+                tx.onRollback(() -> events.add("undo 2b"));
+                throw new IllegalStateException("No");
+            },
+            tx -> {
+                tx.afterCommit(() -> {
+                    throw new IllegalStateException("Hook fails");
+                });
+                tx.afterCommit(() -> events.add("committed 3"));
+                return insert(tx, 3);
+            });
+
+        assertEquals(List.of("undo 2b", "undo 2a", "committed 1", "committed 3"), events);
+        assertEquals(List.of(1, 3), rows());
+    }
+
+    @Test
+    void writerSurvivesAnError() throws Exception {
+        var failure = assertThrows(SQLException.class, () -> pipeline.execute(tx -> {
+            insert(tx, 1);
+            throw new StackOverflowError();
+        }));
+        assertTrue(failure.getCause() instanceof StackOverflowError);
+
+        assertEquals(2, (int) pipeline.execute(tx -> insert(tx, 2)));
+        assertEquals(List.of(2), rows());
+    }
+
+    @Test
+    void closeRunsWhatIsQueuedAndRefusesMore() throws Exception {
+        var started = new CountDownLatch(1);
+        var release = new CountDownLatch(1);
+        var first = pipeline.submit(tx -> {
+            started.countDown();
+            await(release);
+            return insert(tx, 1);
+        });
+        started.await();
+        var queued = pipeline.submit(tx -> insert(tx, 2));
+
+        var closer = new Thread(pipeline::close);
+        closer.start();
+        while (closer.getState() != Thread.State.WAITING) {
+            Thread.onSpinWait();
+        }
+        var late = pipeline.submit(tx -> insert(tx, 3));
+        release.countDown();
+        closer.join();
+
+        assertEquals(1, first.get());
+        assertEquals(2, queued.get());
+        var refused = assertThrows(ExecutionException.class, late::get);
+        assertTrue(refused.getCause() instanceof SQLException);
+        assertEquals(List.of(1, 2), rows());
+    }
+
+    @Test
+    void executeAloneRunsOutsideATransaction() throws Exception {
+        pipeline.execute(tx -> insert(tx, 1));
+        boolean autoCommit = pipeline.executeAlone(tx -> tx.connection().connection().getAutoCommit());
+        assertTrue(autoCommit);
+        assertEquals(2, (int) pipeline.execute(tx -> insert(tx, 2)));
+        assertEquals(List.of(1, 2), rows());
+    }
+
+    /**
+     * Queues writes so that the writer takes them as one batch, and
+     * waits until it has.
+     */
+    @SafeVarargs
+    private List<CompletableFuture<Integer>> inOneBatch(WritePipeline.Write<Integer>... writes)
+            throws Exception {
+        var started = new CountDownLatch(1);
+        var release = new CountDownLatch(1);
+        var holder = pipeline.submit(tx -> {
+            started.countDown();
+            await(release);
+            return null;
+        });
+        started.await();
+        var futures = new ArrayList<CompletableFuture<Integer>>();
+        for (var write : writes) {
+            futures.add(pipeline.submit(write));
+        }
+        release.countDown();
+        holder.get();
+        CompletableFuture.allOf(futures.toArray(CompletableFuture[]::new)).handle((result, e) -> null).get();
+        return futures;
+    }
+
+    private static void await(CountDownLatch latch) throws SQLException {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            throw new SQLException(e);
+        }
+    }
+
+    private static int insert(WritePipeline.Transaction tx, int x) throws SQLException {
+        var ps = tx.prepare("INSERT INTO t (x) VALUES (?)");
+        ps.setInt(1, x);
+        ps.executeUpdate();
+        return x;
+    }
+
+    private List<Integer> rows() throws SQLException {
+        var rows = new ArrayList<Integer>();
+        try (var c = pool.read();
+             var rs = c.prepare("SELECT x FROM t ORDER BY x").executeQuery()) {
+            while (rs.next()) {
+                rows.add(rs.getInt("x"));
+            }
+        }
+        return rows;
+    }
+}